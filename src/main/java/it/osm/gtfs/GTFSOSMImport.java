@@ -17,6 +17,7 @@ package it.osm.gtfs;
 
 import it.osm.gtfs.commands.*;
 import it.osm.gtfs.utils.GTFSImportSettings;
+import it.osm.gtfs.utils.ImportLogger;
 import it.osm.gtfs.utils.VersionProvider;
 import org.fusesource.jansi.AnsiConsole;
 import org.jline.builtins.ConfigurationPath;
@@ -60,7 +61,8 @@ public class GTFSOSMImport {
             CmdGenerateBusStopsImport.class,
             CmdGenerateRoutesFullRelations.class,
             CmdGetBoundingBox.class,
-            CmdGenerateRoutesGPXs.class
+            CmdGenerateRoutesGPXs.class,
+            CmdGenerateStopAreas.class
     );
 
     static List<Object> debugCommands = Arrays.asList(
@@ -194,6 +196,7 @@ public class GTFSOSMImport {
 
         //init settings props
         GTFSImportSettings.init();
+        ImportLogger.configure(GTFSImportSettings.getInstance().getLogLevel(), GTFSImportSettings.getInstance().getLogMessagesPerCategory());
 
         System.out.println("\nWelcome to GTFS-OSM-Import!\n");
 
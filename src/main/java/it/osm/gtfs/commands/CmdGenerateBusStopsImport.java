@@ -21,6 +21,8 @@ import it.osm.gtfs.input.OSMParser;
 import it.osm.gtfs.models.BoundingBox;
 import it.osm.gtfs.models.GTFSStop;
 import it.osm.gtfs.models.OSMStop;
+import it.osm.gtfs.models.Relation;
+import it.osm.gtfs.models.RelationsReverseIndex;
 import it.osm.gtfs.output.OSMBusImportGenerator;
 import it.osm.gtfs.utils.*;
 import org.fusesource.jansi.Ansi;
@@ -31,12 +33,12 @@ import picocli.CommandLine;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
 import java.util.concurrent.Callable;
 
 import static org.fusesource.jansi.Ansi.ansi;
@@ -76,6 +78,10 @@ public class CmdGenerateBusStopsImport implements Callable<Void> {
         new MatchUtils().doStopsMatching(gtfsStopsList, osmStopsList);
 
 
+        //the stops marked as disused or moved after the review, to report the relations they are members of
+        List<OSMStop> disusedOsmStops = new ArrayList<>();
+        List<OSMStop> movedOsmStops = new ArrayList<>();
+
         //second matching phase by checking all osm stops again (also checking stops that didn't get matched && those that we don't consider matched)
         {
 
@@ -129,6 +135,7 @@ public class CmdGenerateBusStopsImport implements Callable<Void> {
 
                         //instead of adding a JOSM "delete" action, we mark this stop as disused, so that it is preserved in OSM in case this is a false positive
                         OSMXMLUtils.markDisused(originalNode); //to stops that are already marked as disused we re-mark them as disused in case some tags are not marked as disused
+                        disusedOsmStops.add(osmStop);
 
                         bufferNotMatchedStops.appendNode(originalNode);
 
@@ -164,6 +171,10 @@ public class CmdGenerateBusStopsImport implements Callable<Void> {
 
                         GeoPosition chosenGeoPosition = finalReviewedGeopositions.get(reviewedOsmStop);
 
+                        if (!chosenGeoPosition.equals(reviewedOsmStop.getGeoPosition())) {
+                            movedOsmStops.add(reviewedOsmStop);
+                        }
+
                         //we set the new chosen coordinates to the node
                         originalNode.setAttribute("lat", String.valueOf(chosenGeoPosition.getLatitude()));
                         originalNode.setAttribute("lon", String.valueOf(chosenGeoPosition.getLongitude()));
@@ -230,6 +241,72 @@ public class CmdGenerateBusStopsImport implements Callable<Void> {
         }
 
 
+        reportAffectedRelations(osmStopsList, disusedOsmStops, movedOsmStops);
+
+
         return null;
     }
+
+    /***
+     * Prints the relations that have the disused or moved stops as members, and saves their list in a file
+     * that can be pasted in the JOSM "Download object" dialog to check them
+     */
+    private void reportAffectedRelations(List<OSMStop> osmStopsList, List<OSMStop> disusedOsmStops, List<OSMStop> movedOsmStops) throws IOException, SAXException {
+        if (disusedOsmStops.isEmpty() && movedOsmStops.isEmpty()) {
+            return;
+        }
+
+        File relationsFile = new File(GTFSImportSettings.getInstance().getOsmRelationsFilePath());
+
+        if (!relationsFile.exists()) {
+            System.out.println(ansi().render("@|yellow The OSM relations file doesn't exist, the relations affected by the disused and moved stops can't be reported |@"));
+            return;
+        }
+
+        RelationsReverseIndex relationsReverseIndex = OSMParser.readOSMRelations(relationsFile, StopsUtils.getOSMIdOSMStopMap(osmStopsList),
+                SharedCliOptions.checkStopsOfAnyOperatorTagValue).getRelationsReverseIndex();
+
+        Set<String> affectedRelationsIds = new TreeSet<>();
+
+        affectedRelationsIds.addAll(printAffectedRelations(relationsReverseIndex, disusedOsmStops, "disused"));
+        affectedRelationsIds.addAll(printAffectedRelations(relationsReverseIndex, movedOsmStops, "moved"));
+
+        if (affectedRelationsIds.isEmpty()) {
+            System.out.println(ansi().render("@|green No relation is affected by the disused and moved stops |@"));
+            return;
+        }
+
+        List<String> josmObjectIds = new ArrayList<>();
+        for (String relationId : affectedRelationsIds) {
+            josmObjectIds.add("r" + relationId);
+        }
+
+        Files.writeString(Path.of(GTFSImportSettings.getInstance().getOutputPath() + GTFSImportSettings.OUTPUT_AFFECTED_RELATIONS), String.join(",", josmObjectIds) + System.lineSeparator());
+
+        System.out.println(ansi().fg(Ansi.Color.GREEN).a("Relations affected by the disused and moved stops: ").reset().a(affectedRelationsIds.size()).fg(Ansi.Color.YELLOW).a(" (created list to load in JOSM: " + GTFSImportSettings.OUTPUT_AFFECTED_RELATIONS + ")").reset());
+    }
+
+    //returns the ids of the printed relations
+    private static Set<String> printAffectedRelations(RelationsReverseIndex relationsReverseIndex, List<OSMStop> osmStops, String change) {
+        Set<String> relationsIds = new HashSet<>();
+
+        for (OSMStop osmStop : osmStops) {
+            List<Relation> relations = relationsReverseIndex.getStopRelations(osmStop.getOSMId());
+
+            if (relations.isEmpty()) {
+                continue;
+            }
+
+            List<String> relationsDescriptions = new ArrayList<>();
+
+            for (Relation relation : relations) {
+                relationsIds.add(relation.getId());
+                relationsDescriptions.add(relation.getId() + " (ref=" + relation.getRef() + ", name=" + relation.getName() + ")");
+            }
+
+            System.out.println(ansi().render("@|yellow OSM Stop node id " + osmStop.getOSMId() + " (ref=" + osmStop.getCode() + ") was " + change + " and is a member of the relations: |@" + String.join(", ", relationsDescriptions)));
+        }
+
+        return relationsIds;
+    }
 }
@@ -17,26 +17,45 @@ import com.google.common.collect.Multimap;
 import it.osm.gtfs.input.GTFSParser;
 import it.osm.gtfs.input.OSMParser;
 import it.osm.gtfs.models.*;
+import it.osm.gtfs.plugins.GTFSPlugin;
 import it.osm.gtfs.utils.GTFSImportSettings;
+import it.osm.gtfs.utils.ImportLogger;
 import it.osm.gtfs.utils.SharedCliOptions;
+import it.osm.gtfs.utils.StopsMinHashIndex;
+import it.osm.gtfs.utils.StopsSequenceAlignment;
 import it.osm.gtfs.utils.StopsUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.xml.sax.SAXException;
 import picocli.CommandLine;
 
 import javax.xml.parsers.ParserConfigurationException;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 @CommandLine.Command(name = "reldiff", description = "Analyze the diff between osm relations and gtfs trips")
 public class CmdGenerateRoutesDiff implements Callable<Void> {
+    //the number of most similar relations reported for every trip not found in OSM
+    private static final int UNMATCHED_TRIP_CANDIDATES = 3;
 
+    @CommandLine.Option(names = {"--exhaustive"}, description = "Compare the relations without a match with all the trips instead of only the trips with similar stops")
+    boolean exhaustive = false;
+    @CommandLine.Option(names = {"--recall"}, description = "Also compare the relations without a match with all the trips, and report how often the best trip was among the candidates")
+    boolean recall = false;
     @CommandLine.Mixin
     private SharedCliOptions sharedCliOptions;
 
     @Override
-    public Void call() throws ParserConfigurationException, IOException, SAXException {
+    public Void call() throws ParserConfigurationException, IOException, SAXException, InterruptedException, ExecutionException {
         List<OSMStop> osmStops = OSMParser.readOSMStops(GTFSImportSettings.getInstance().getOsmStopsFilePath(), SharedCliOptions.checkStopsOfAnyOperatorTagValue);
         Map<String, OSMStop> osmstopsGTFSId = StopsUtils.getGTFSIdOSMStopMap(osmStops);
         Map<String, OSMStop> osmstopsOsmID = StopsUtils.getOSMIdOSMStopMap(osmStops);
@@ -47,115 +66,313 @@ public class CmdGenerateRoutesDiff implements Callable<Void> {
         List<Trip> trips = GTFSParser.readTrips(GTFSImportSettings.getInstance().getGTFSDataPath() + GTFSImportSettings.GTFS_TRIPS_FILE_NAME,
                 routes, readStopTimesResult.getTripIdStopListMap());
 
-        //looking from mapping gtfs trip into existing osm relations
-        Set<Relation> osmRelationNotFoundInGTFS = new HashSet<>(osmRels.getFinalValidRelations());
-        Set<Relation> osmRelationFoundInGTFS = new HashSet<>();
-        List<Trip> tripsNotFoundInOSM = new LinkedList<>();
-
         Multimap<Route, Trip> groupedTrips = GTFSParser.groupTrips(routes, trips);
         Set<Route> routeSet = new TreeSet<>(groupedTrips.keySet());
-        Map<Relation, Affinity> affinities = new HashMap<>();
-
-        for (Route route : routeSet) {
-            Collection<Trip> allTrips = groupedTrips.get(route);
-            Set<Trip> uniqueTrips = new HashSet<>(allTrips);
-
-            for (Trip trip : uniqueTrips) {
-                TripStopsList s = readStopTimesResult.getTripIdStopListMap().get(trip.getTripId());
-                if (GTFSImportSettings.getInstance().getPlugin().isValidTrip(allTrips, uniqueTrips, trip, s)) {
-                    if (GTFSImportSettings.getInstance().getPlugin().isValidRoute(route)) {
-                        Relation found = null;
-                        for (Relation validRelation : osmRels.getFinalValidRelations()) {
-                            if (validRelation.equalsStops(s) || GTFSImportSettings.getInstance().getPlugin().isRelationSameAs(validRelation, s)) {
-                                if (found != null) {
-                                    osmRelationNotFoundInGTFS.remove(found);
-                                    osmRelationFoundInGTFS.add(found);
-                                }
-                                found = validRelation;
-                            }
-                            int affinity = validRelation.getStopsAffinity(s);
-                            Affinity oldAff = affinities.get(validRelation);
-                            if (oldAff == null) {
-                                oldAff = new Affinity();
-                                oldAff.trip = trip;
-                                oldAff.affinity = affinity;
-                                affinities.put(validRelation, oldAff);
-                            } else if (oldAff.affinity < affinity) {
-                                oldAff.trip = trip;
-                                oldAff.affinity = affinity;
-                            }
-                        }
-                        if (found != null) {
-                            osmRelationNotFoundInGTFS.remove(found);
-                            osmRelationFoundInGTFS.add(found);
-                        } else {
-                            tripsNotFoundInOSM.add(trip);
-                            System.err.println("Warning: tripid: " + trip.getTripId() + " (" + trip.getTripHeadsign() + ") not found in OSM, details below.");
-                            System.err.println("Details: shapeid: " + trip.getShapeId() + " shortname: " + route.getShortName() + " longname:" + route.getLongName());
-                        }
-                    } else {
-                        System.err.println("Warning: tripid: " + trip.getTripId() + " skipped (invalidated route by plugin).");
-                    }
+
+        GTFSPlugin plugin = GTFSImportSettings.getInstance().getPlugin();
+        RelationsFingerprintIndex relationsFingerprintIndex = new RelationsFingerprintIndex(osmRels.getFinalValidRelations(), Math.max(plugin.getRelationSameAsMissingLastStops(), 0));
+
+        StopsMinHashIndex<Relation> relationsMinHashIndex = new StopsMinHashIndex<>();
+        for (Relation relation : osmRels.getFinalValidRelations()) {
+            relationsMinHashIndex.add(relation, relation.getStops().values());
+        }
+
+        Set<Relation> osmRelationFoundInGTFS = new HashSet<>();
+        List<Trip> validTrips = new ArrayList<>();
+        int tripsNotFoundInOSM = 0, skippedTrips = 0;
+        int candidateTrips = 0, exhaustiveSearches = 0, bestTripsFound = 0;
+        List<Relation> osmRelationNotFoundInGTFS = new ArrayList<>();
+
+        Path reportPath = Path.of(GTFSImportSettings.getInstance().getOutputPath(), GTFSImportSettings.OUTPUT_ROUTES_DIFF);
+        ForkJoinPool pool = new ForkJoinPool(GTFSImportSettings.getInstance().getMatchingThreads());
+
+        //the routes are analyzed in parallel, but their results are written in the order of the routes as soon as they are ready
+        try (BufferedWriter report = Files.newBufferedWriter(reportPath, StandardCharsets.UTF_8)) {
+            List<Future<RouteDiff>> routeDiffs = new ArrayList<>();
+
+            for (Route route : routeSet) {
+                List<Trip> allTrips = new ArrayList<>(groupedTrips.get(route));
+                routeDiffs.add(pool.submit(() -> getRouteDiff(route, allTrips, plugin, relationsFingerprintIndex, relationsMinHashIndex, osmRels.getFinalValidRelations(), readStopTimesResult)));
+            }
+
+            for (Future<RouteDiff> future : routeDiffs) {
+                RouteDiff routeDiff = future.get();
+
+                writeRecords(report, routeDiff.records);
+                validTrips.addAll(routeDiff.validTrips);
+                osmRelationFoundInGTFS.addAll(routeDiff.matchedRelations);
+                tripsNotFoundInOSM += routeDiff.tripsNotFoundInOSM;
+                skippedTrips += routeDiff.skippedTrips;
+            }
+
+            for (Relation relation : osmRels.getFinalValidRelations()) {
+                if (osmRelationFoundInGTFS.contains(relation)) {
+                    writeRecords(report, List.of(new JSONObject().put("type", "matched_relation").put("relation_id", relation.getId()).putOpt("name", relation.getName())));
                 } else {
-                    System.err.println("Warning: tripid: " + trip.getTripId() + " skipped (invalidated trip by plugin).");
+                    osmRelationNotFoundInGTFS.add(relation);
                 }
             }
-        }
 
-        System.out.println("---");
+            //the best matching trip is only needed for the relations without a match, and only the trips with similar stops are compared
+            StopsMinHashIndex<Trip> tripsMinHashIndex = new StopsMinHashIndex<>();
+            for (Trip trip : validTrips) {
+                tripsMinHashIndex.add(trip, readStopTimesResult.getTripIdStopListMap().get(trip.getTripId()).getStopSequenceOSMStopMap().values());
+            }
 
-        for (Relation relation : osmRelationFoundInGTFS) {
-            System.out.println("Relation " + relation.getId() + " (" + relation.getName() + ") matched in GTFS ");
+            List<Future<RelationDiff>> relationDiffs = new ArrayList<>();
+
+            for (Relation relation : osmRelationNotFoundInGTFS) {
+                relationDiffs.add(pool.submit(() -> getRelationDiff(relation, validTrips, tripsMinHashIndex, readStopTimesResult)));
+            }
+
+            for (Future<RelationDiff> future : relationDiffs) {
+                RelationDiff relationDiff = future.get();
+
+                writeRecords(report, List.of(relationDiff.record));
+                candidateTrips += relationDiff.candidateTrips;
+                exhaustiveSearches += relationDiff.exhaustiveSearch ? 1 : 0;
+                bestTripsFound += relationDiff.bestTripFound ? 1 : 0;
+            }
+
+            JSONObject summary = new JSONObject()
+                    .put("type", "summary")
+                    .put("matched_relations", osmRelationFoundInGTFS.size())
+                    .put("unmatched_relations", osmRelationNotFoundInGTFS.size())
+                    .put("unmatched_trips", tripsNotFoundInOSM)
+                    .put("skipped_trips", skippedTrips)
+                    .put("valid_trips", validTrips.size())
+                    .put("candidate_trips", candidateTrips)
+                    .put("exhaustive_searches", exhaustiveSearches);
+
+            if (recall) {
+                summary.put("best_trips_found", bestTripsFound);
+            }
+
+            writeRecords(report, List.of(summary));
+        } finally {
+            pool.shutdown();
         }
 
         System.out.println("---");
+        System.out.println("Relation in OSM matched in GTFS: " + osmRelationFoundInGTFS.size());
+        System.out.println("Relation in OSM not matched in GTFS: " + osmRelationNotFoundInGTFS.size());
+        System.out.println("Trips in GTFS not matched in OSM: " + tripsNotFoundInOSM);
+        System.out.println("Trips skipped by the plugin: " + skippedTrips);
 
-        for (Trip trip : tripsNotFoundInOSM) {
-            System.out.println("Trip " + trip.getTripId() + " (" + routes.get(trip.getRoute().getId()).getShortName() + " - " + trip.getTripHeadsign() + ") not found in OSM ");
-            TripStopsList stopGTFS = readStopTimesResult.getTripIdStopListMap().get(trip.getTripId());
-            System.out.println("Progressivo \tGTFS\tOSM");
+        if (!osmRelationNotFoundInGTFS.isEmpty()) {
+            System.out.println("Trips compared with every relation not matched: " + String.format("%.1f", (double) candidateTrips / osmRelationNotFoundInGTFS.size()) + " of " + validTrips.size() +
+                    " (" + exhaustiveSearches + " relations without similar trips compared with all of them)");
 
-            for (long f = 1; f <= stopGTFS.getStopSequenceOSMStopMap().size(); f++) {
-                Stop gtfs = stopGTFS.getStopSequenceOSMStopMap().get(f);
-                System.out.println("Stop # " + f + "\t" + ((gtfs != null) ? gtfs.getCode() : "-") + "\t" + "-" + "*");
+            if (recall) {
+                System.out.println("Relations whose best trip was among the candidates (recall): " + bestTripsFound + "/" + osmRelationNotFoundInGTFS.size() +
+                        " (" + String.format("%.1f", bestTripsFound * 100.0 / osmRelationNotFoundInGTFS.size()) + "%)");
             }
         }
 
+        //the markup is only rendered on a terminal, so that the report path can be copied from a redirected output
+        ImportLogger.log(ImportLogger.Level.INFO, "@|yellow Full report with the aligned stops of every trip and relation not matched: " + GTFSImportSettings.OUTPUT_ROUTES_DIFF + "|@");
+        ImportLogger.flush();
         System.out.println("---");
+        return null;
+    }
+
+    /***
+     * Matches the trips of a route with the relations on a worker thread, the results are returned as report records instead of being printed
+     */
+    private static RouteDiff getRouteDiff(Route route, List<Trip> allTrips, GTFSPlugin plugin, RelationsFingerprintIndex relationsFingerprintIndex,
+                                          StopsMinHashIndex<Relation> relationsMinHashIndex, List<Relation> validRelations, ReadStopTimesResult readStopTimesResult) {
+        RouteDiff routeDiff = new RouteDiff();
+        Set<Trip> uniqueTrips = new HashSet<>(allTrips);
+
+        for (Trip trip : uniqueTrips) {
+            TripStopsList s = readStopTimesResult.getTripIdStopListMap().get(trip.getTripId());
+            JSONObject record = new JSONObject()
+                    .put("route_id", route.getId())
+                    .putOpt("route_short_name", route.getShortName())
+                    .put("trip_id", trip.getTripId())
+                    .putOpt("shape_id", trip.getShapeId())
+                    .putOpt("headsign", trip.getTripHeadsign());
+
+            if (!plugin.isValidTrip(allTrips, uniqueTrips, trip, s)) {
+                routeDiff.skippedTrips++;
+                routeDiff.records.add(record.put("type", "skipped_trip").put("reason", "invalidated trip by plugin"));
+                continue;
+            }
+
+            if (!plugin.isValidRoute(route)) {
+                routeDiff.skippedTrips++;
+                routeDiff.records.add(record.put("type", "skipped_trip").put("reason", "invalidated route by plugin"));
+                continue;
+            }
 
-        for (Relation relation : osmRelationNotFoundInGTFS) {
-            System.out.println("---");
+            routeDiff.validTrips.add(trip);
 
-            Affinity affinityGTFS = affinities.get(relation);
-            System.out.println("Relation " + relation.getId() + " (" + relation.getName() + ") NOT matched in GTFS ");
-            System.out.println("Best match (" + affinityGTFS.affinity + "): id: " + affinityGTFS.trip.getTripId() + " " + routes.get(affinityGTFS.trip.getRoute().getId()).getShortName() + " " + affinityGTFS.trip.getTripHeadsign());
-            TripStopsList stopGTFS = readStopTimesResult.getTripIdStopListMap().get(affinityGTFS.trip.getTripId());
+            Set<Relation> sameRelations = getSameRelations(plugin, relationsFingerprintIndex, validRelations, s);
+
+            if (!sameRelations.isEmpty()) {
+                routeDiff.matchedRelations.addAll(sameRelations);
+
+                JSONArray relations = new JSONArray();
+                for (Relation relation : sameRelations) {
+                    relations.put(new JSONObject().put("id", relation.getId()).putOpt("name", relation.getName()));
+                }
 
-            long max = Math.max(stopGTFS.getStopSequenceOSMStopMap().size(), relation.getStops().size());
+                routeDiff.records.add(record.put("type", "matched_trip").put("relations", relations));
+            } else {
+                routeDiff.tripsNotFoundInOSM++;
 
-            System.out.println("Progressivo \tGTFS\tOSM");
+                //the most similar relations, with the stops aligned with the most similar one
+                List<Relation> candidates = new ArrayList<>(relationsMinHashIndex.getCandidates(s.getStopSequenceOSMStopMap().values()));
+                Map<Relation, Integer> candidatesAffinities = new HashMap<>();
 
-            for (long f = 1; f <= max; f++) {
-                Stop gtfs = stopGTFS.getStopSequenceOSMStopMap().get(f);
-                Stop osm = relation.getStops().get(f);
-                try {
-                    System.out.println("Stop # " + f + "\t" + ((gtfs != null) ? gtfs.getCode() : "-") + "\t" + ((osm != null) ? osm.getCode() : "-") + ((gtfs != null) && (osm != null) && gtfs.getCode().equals(osm.getCode()) ? "" : "*") + "\t" + ((osm != null) ? osm.getName() : "-"));
-                } catch (Exception e) {
-                    System.out.println("Stop # " + f + "\t-\r-");
+                for (Relation relation : candidates) {
+                    candidatesAffinities.put(relation, relation.getStopsAffinity(s));
                 }
+
+                candidates.sort(Comparator.comparingInt((Relation relation) -> -candidatesAffinities.get(relation)));
+
+                JSONArray bestRelations = new JSONArray();
+                for (Relation relation : candidates.subList(0, Math.min(UNMATCHED_TRIP_CANDIDATES, candidates.size()))) {
+                    bestRelations.put(new JSONObject().put("id", relation.getId()).putOpt("name", relation.getName()).put("affinity", candidatesAffinities.get(relation)));
+                }
+
+                Map<Long, OSMStop> bestRelationStops = candidates.isEmpty() ? Map.of() : candidates.get(0).getStops();
+
+                routeDiff.records.add(record.put("type", "unmatched_trip")
+                        .put("best_relations", bestRelations)
+                        .put("stops", getAlignedStops(bestRelationStops, s.getStopSequenceOSMStopMap())));
             }
         }
 
-        System.out.println("---");
-        System.out.println("Relation in OSM matched in GTFS: " + osmRelationFoundInGTFS.size());
-        System.out.println("Relation in OSM not matched in GTFS: " + osmRelationNotFoundInGTFS.size());
-        System.out.println("Trips in GTFS not matched in OSM: " + tripsNotFoundInOSM.size());
-        System.out.println("---");
-        return null;
+        return routeDiff;
+    }
+
+    private RelationDiff getRelationDiff(Relation relation, List<Trip> validTrips, StopsMinHashIndex<Trip> tripsMinHashIndex, ReadStopTimesResult readStopTimesResult) {
+        RelationDiff relationDiff = new RelationDiff();
+        List<Trip> candidates = exhaustive ? validTrips : tripsMinHashIndex.getCandidates(relation.getStops().values());
+
+        //a relation without trips with similar stops is still compared with all of them, to show the most similar one anyway
+        if (candidates.isEmpty()) {
+            candidates = validTrips;
+            relationDiff.exhaustiveSearch = true;
+        }
+
+        relationDiff.candidateTrips = candidates.size();
+
+        Affinity affinity = getBestAffinity(relation, candidates, readStopTimesResult);
+
+        if (recall) {
+            Affinity exhaustiveAffinity = getBestAffinity(relation, validTrips, readStopTimesResult);
+            relationDiff.bestTripFound = exhaustiveAffinity == null || exhaustiveAffinity.affinity == affinity.affinity;
+        }
+
+        relationDiff.record = new JSONObject()
+                .put("type", "unmatched_relation")
+                .put("relation_id", relation.getId())
+                .putOpt("name", relation.getName())
+                .putOpt("ref", relation.getRef());
+
+        if (affinity != null) {
+            TripStopsList tripStopsList = readStopTimesResult.getTripIdStopListMap().get(affinity.trip.getTripId());
+
+            relationDiff.record.put("best_trip", new JSONObject()
+                            .put("trip_id", affinity.trip.getTripId())
+                            .putOpt("route_short_name", affinity.trip.getRoute().getShortName())
+                            .putOpt("headsign", affinity.trip.getTripHeadsign())
+                            .put("affinity", affinity.affinity))
+                    .put("stops", getAlignedStops(relation.getStops(), tripStopsList.getStopSequenceOSMStopMap()));
+        } else {
+            relationDiff.record.put("stops", getAlignedStops(relation.getStops(), Map.of()));
+        }
+
+        return relationDiff;
+    }
+
+    private static JSONArray getAlignedStops(Map<Long, OSMStop> relationStops, Map<Long, OSMStop> tripStops) {
+        JSONArray result = new JSONArray();
+
+        for (StopsSequenceAlignment.AlignedStop alignedStop : StopsSequenceAlignment.align(new ArrayList<>(relationStops.values()), new ArrayList<>(tripStops.values()))) {
+            Stop gtfs = alignedStop.getTripStop();
+            Stop osm = alignedStop.getRelationStop();
+
+            result.put(new JSONObject()
+                    .put("operation", alignedStop.getOperation().name())
+                    .putOpt("gtfs_id", (gtfs != null) ? gtfs.getGtfsId() : osm.getGtfsId())
+                    .putOpt("gtfs_code", (gtfs != null) ? gtfs.getCode() : null)
+                    .putOpt("osm_code", (osm != null) ? osm.getCode() : null)
+                    .putOpt("name", (osm != null) ? osm.getName() : gtfs.getName()));
+        }
+
+        return result;
+    }
+
+    private static void writeRecords(BufferedWriter report, List<JSONObject> records) throws IOException {
+        for (JSONObject record : records) {
+            report.write(record.toString());
+            report.newLine();
+        }
+
+        //flushed after every route, so that the report can be followed while it's written
+        report.flush();
+    }
+
+    /***
+     * Finds the relations with the same stops of the trip by fingerprint, and checks with the plugin only the relations it could accept
+     * @return the relations matching the trip, in the order they were found
+     */
+    private static Set<Relation> getSameRelations(GTFSPlugin plugin, RelationsFingerprintIndex relationsFingerprintIndex, List<Relation> validRelations, TripStopsList s) {
+        Set<Relation> result = new LinkedHashSet<>(relationsFingerprintIndex.getSameStopsRelations(s));
+
+        Collection<Relation> pluginCandidates = (plugin.getRelationSameAsMissingLastStops() >= 0) ? relationsFingerprintIndex.getMissingLastStopsRelations(s) : validRelations;
+
+        for (Relation relation : pluginCandidates) {
+            if (!result.contains(relation) && plugin.isRelationSameAs(relation, s)) {
+                result.add(relation);
+            }
+        }
+
+        return result;
+    }
+
+    /***
+     * @return the trip with the highest affinity with the relation, the first one of the list if more trips have the same affinity,
+     * or null if the list is empty
+     */
+    private static Affinity getBestAffinity(Relation relation, List<Trip> trips, ReadStopTimesResult readStopTimesResult) {
+        Affinity best = null;
+
+        for (Trip trip : trips) {
+            int affinity = relation.getStopsAffinity(readStopTimesResult.getTripIdStopListMap().get(trip.getTripId()));
+            if (best == null) {
+                best = new Affinity();
+                best.trip = trip;
+                best.affinity = affinity;
+            } else if (best.affinity < affinity) {
+                best.trip = trip;
+                best.affinity = affinity;
+            }
+        }
+
+        return best;
     }
 
     private static class Affinity {
         public Trip trip;
         public int affinity;
     }
+
+    private static class RouteDiff {
+        public final List<JSONObject> records = new ArrayList<>();
+        public final List<Trip> validTrips = new ArrayList<>();
+        public final Set<Relation> matchedRelations = new LinkedHashSet<>();
+        public int tripsNotFoundInOSM;
+        public int skippedTrips;
+    }
+
+    private static class RelationDiff {
+        public JSONObject record;
+        public int candidateTrips;
+        public boolean exhaustiveSearch;
+        public boolean bestTripFound;
+    }
 }
@@ -19,7 +19,6 @@ import it.osm.gtfs.input.OSMParser;
 import it.osm.gtfs.models.*;
 import it.osm.gtfs.output.OSMRelationImportGenerator;
 import it.osm.gtfs.utils.*;
-import org.apache.commons.httpclient.util.URIUtil;
 import org.fusesource.jansi.Ansi;
 import org.xml.sax.SAXException;
 import picocli.CommandLine;
@@ -30,12 +29,17 @@ import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import static org.fusesource.jansi.Ansi.ansi;
 
 
 @CommandLine.Command(name = "fullrels", mixinStandardHelpOptions = true, description = "Generate full relations including ways and stops (very long!)")
 public class CmdGenerateRoutesFullRelations implements Callable<Void> {
+    private static final ImportLogger.Category WAY_MATCHED_RELATIONS = ImportLogger.category(ImportLogger.Level.INFO, "full way-matched relations created");
+    private static final ImportLogger.Category STOPS_ONLY_RELATIONS = ImportLogger.category(ImportLogger.Level.INFO, "stops-only relations created");
 
     @CommandLine.Option(names = {"-n", "--nowaymatching"}, description = "Generate stops-only relations (skips OSM ways matching)")
     Boolean noOsmWayMatching = false;
@@ -47,7 +51,7 @@ public class CmdGenerateRoutesFullRelations implements Callable<Void> {
     private SharedCliOptions sharedCliOptions;
 
     @Override
-    public Void call() throws IOException, ParserConfigurationException, SAXException, InterruptedException, TransformerException {
+    public Void call() throws IOException, ParserConfigurationException, SAXException, InterruptedException, TransformerException, ExecutionException {
 
         if (!skipDataUpdate) {
             //update osm and gtfs data
@@ -67,40 +71,65 @@ public class CmdGenerateRoutesFullRelations implements Callable<Void> {
         }
 
         BoundingBox boundingBox = new BoundingBox(gtfsIdOsmStopMap.values());
+        List<BoundingBox> downloadRegions = BoundingBox.getClusteredRegions(gtfsIdOsmStopMap.values(), GTFSImportSettings.getInstance().getOverpassRegionClusterDistanceDegrees());
 
-        Map<String, Route> routes = GTFSParser.readRoutes(GTFSImportSettings.getInstance().getGTFSDataPath() + GTFSImportSettings.GTFS_ROUTES_FILE_NAME);
+        //the shapes are read first as they define the area where we need the OSM ways
         Map<String, Shape> shapes = GTFSParser.readShapes(GTFSImportSettings.getInstance().getGTFSDataPath() + GTFSImportSettings.GTFS_SHAPES_FILE_NAME);
 
-        ReadStopTimesResult readStopTimesResult = GTFSParser.readStopTimes(GTFSImportSettings.getInstance().getGTFSDataPath() + GTFSImportSettings.GTFS_STOP_TIMES_FILE_NAME,
-                gtfsIdOsmStopMap);
+        Multimap<Route, Trip> groupedTrips;
+        Set<Route> finalRoutesSet;
 
-        List<Trip> trips = GTFSParser.readTrips(GTFSImportSettings.getInstance().getGTFSDataPath() + GTFSImportSettings.GTFS_TRIPS_FILE_NAME,
-                routes, readStopTimesResult.getTripIdStopListMap());
+        try (OverpassFetchScheduler fetchScheduler = OverpassFetchScheduler.fromSettings()) {
+            Future<File> waysDownload = null;
 
+            try {
+                if (!skipWaysUpdate) {
+                    //download of updated OSM ways in the GTFS bounding box, it goes on in background while we read the GTFS data
+                    //the bounding box is split into tiles, so that big networks don't hit the Overpass timeouts or memory limits
+                    String queryHighways = "(way[\"highway\"~\"motorway|trunk|primary|tertiary|secondary|unclassified|motorway_link|trunk_link|primary_link|track|path|residential|service|secondary_link|tertiary_link|bus_guideway|road|busway\"];>;);out body;";
+                    File fileOverpassHighways = new File(GTFSImportSettings.getInstance().getOsmOverpassWaysFilePath());
 
-        //sorting set
-        Multimap<Route, Trip> groupedTrips = GTFSParser.groupTrips(routes, trips);
+                    //only the ways near the shapes are kept, so that the GraphHopper graph is much smaller and faster to build
+                    int corridorBufferMeters = GTFSImportSettings.getInstance().getShapeCorridorBufferMeters();
+                    ShapeCorridor shapesCorridor = (corridorBufferMeters > 0 && !shapes.isEmpty()) ? new ShapeCorridor(shapes.values(), corridorBufferMeters) : null;
 
-        //this is usually the same as the routes variable, but making a list of actually used routes from the trips
-        //is more accurate, as some routes may not have any trips
-        Set<Route> finalRoutesSet = new TreeSet<>(groupedTrips.keySet());
+                    waysDownload = OverpassTiledFetcher.fromSettings(fetchScheduler).fetchAsync(queryHighways, downloadRegions, shapesCorridor, fileOverpassHighways);
+                }
 
+                Map<String, Route> routes = GTFSParser.readRoutes(GTFSImportSettings.getInstance().getGTFSDataPath() + GTFSImportSettings.GTFS_ROUTES_FILE_NAME);
 
-        if (!readStopTimesResult.getMissingStops().isEmpty()) {
+                ReadStopTimesResult readStopTimesResult = GTFSParser.readStopTimes(GTFSImportSettings.getInstance().getGTFSDataPath() + GTFSImportSettings.GTFS_STOP_TIMES_FILE_NAME,
+                        gtfsIdOsmStopMap);
 
-            System.out.println(ansi().render("@|red The relations generation will not continue as there are some GTFS stops that are missing from OSM. |@"));
+                List<Trip> trips = GTFSParser.readTrips(GTFSImportSettings.getInstance().getGTFSDataPath() + GTFSImportSettings.GTFS_TRIPS_FILE_NAME,
+                        routes, readStopTimesResult.getTripIdStopListMap());
+
+
+                //sorting set
+                groupedTrips = GTFSParser.groupTrips(routes, trips);
+
+                //this is usually the same as the routes variable, but making a list of actually used routes from the trips
+                //is more accurate, as some routes may not have any trips
+                finalRoutesSet = new TreeSet<>(groupedTrips.keySet());
 
-            return null;
-        }
 
+                if (!readStopTimesResult.getMissingStops().isEmpty()) {
 
-        if (!skipWaysUpdate) {
-            //download of updated OSM ways in the GTFS bounding box
-            String queryHighways =  "?data=[bbox];(way[\"highway\"~\"motorway|trunk|primary|tertiary|secondary|unclassified|motorway_link|trunk_link|primary_link|track|path|residential|service|secondary_link|tertiary_link|bus_guideway|road|busway\"];>;);out body;&bbox=" + boundingBox.getAPIQuery();
-            File fileOverpassHighways = new File(GTFSImportSettings.getInstance().getOsmOverpassWaysFilePath());
+                    System.out.println(ansi().render("@|red The relations generation will not continue as there are some GTFS stops that are missing from OSM. |@"));
 
-            String urlhighways = GTFSImportSettings.getInstance().getOverpassApiServer() + URIUtil.encodeQuery(queryHighways);
-            DownloadUtils.download(urlhighways, fileOverpassHighways, true);
+                    return null;
+                }
+
+
+                if (waysDownload != null) {
+                    fetchScheduler.await(waysDownload);
+                }
+            } finally {
+                //the download is stopped explicitly if the generation doesn't go on, before the scheduler is closed
+                if (waysDownload != null) {
+                    waysDownload.cancel(true);
+                }
+            }
         }
 
         GTFSOSMWaysMatch osmmatchinstance = new GTFSOSMWaysMatch().initMatch(!skipWaysUpdate);
@@ -113,82 +142,104 @@ public class CmdGenerateRoutesFullRelations implements Callable<Void> {
         List<File> relationsFileList = new ArrayList<>();
 
 
-        int tempid = 10000;
+        //the unique trips of every route, in the order of groupTrips (sorted by Trip.compareTo: route, shape and trip id), so that the relations ids are the same at every run
+        Map<Route, List<Trip>> routeUniqueTripsMap = new LinkedHashMap<>();
+        for (Route route : finalRoutesSet) {
+            routeUniqueTripsMap.put(route, new ArrayList<>(new LinkedHashSet<>(groupedTrips.get(route)))); //uses the equals method of the Trip class to check if the trips are the same
+        }
 
-        for (Route route : finalRoutesSet) { //for every route
-            Collection<Trip> allTrips = groupedTrips.get(route);
-            Set<Trip> uniqueTrips = new HashSet<>(allTrips); //uses the equals method of the Trip class to check if the trips are the same
+        //the shapes are matched in parallel while the relations are written in order, each one as soon as its shape is matched
+        ForkJoinPool waysMatchingPool = new ForkJoinPool(GTFSImportSettings.getInstance().getWaysMatchingThreads());
+        Map<Trip, Future<List<Integer>>> tripOsmWayIdsMap = Map.of();
 
+        try {
+            if (!noOsmWayMatching) {
+                tripOsmWayIdsMap = submitShapesMatching(routeUniqueTripsMap.values(), shapes, osmmatchinstance, waysMatchingPool);
+            }
 
-            List<Integer> newRelationsIds = new ArrayList<>();
+            int tempid = 10000;
 
-            for (Trip trip : uniqueTrips) { //for every trip
+            for (Route route : finalRoutesSet) { //for every route
+                Collection<Trip> allTrips = groupedTrips.get(route);
+                List<Trip> uniqueTrips = routeUniqueTripsMap.get(route);
 
-                int count = Collections.frequency(allTrips, trip); //number of trips with the same headsign present in the gtfs trips file
 
-                List<Integer> osmWayIds = null;
+                List<Integer> newRelationsIds = new ArrayList<>();
 
-                if (!noOsmWayMatching) {
-                    System.out.println(ansi().fg(Ansi.Color.YELLOW).a("\nCreating full way-matched relation for trip " + trip.getTripHeadsign() + " tripId = " + trip.getTripId() + " ...").reset());
+                for (Trip trip : uniqueTrips) { //for every trip
 
-                    Shape shape = shapes.get(trip.getShapeId());
+                    int count = Collections.frequency(allTrips, trip); //number of trips with the same headsign present in the gtfs trips file
 
-                    String xmlGPXShape = shape.getGPXasSegment(route.getShortName());
+                    List<Integer> osmWayIds = null;
 
-                    //TODO: need to check if the way matches are ordered well
-                    osmWayIds = osmmatchinstance.matchGPX(xmlGPXShape);
+                    if (!noOsmWayMatching) {
+                        ImportLogger.log(WAY_MATCHED_RELATIONS, () -> "@|yellow Creating full way-matched relation for trip " + trip.getTripHeadsign() + " tripId = " + trip.getTripId() + " ...|@");
 
-                } else {
-                    System.out.println(ansi().fg(Ansi.Color.YELLOW).a("Creating stops-only relation " + trip.getTripHeadsign() + " tripId=" + trip.getTripId() + " ...").reset());
-                }
+                        //TODO: need to check if the way matches are ordered well
+                        osmWayIds = tripOsmWayIdsMap.get(trip).get();
 
-                String fixedTripHeadsignFileName = trip.getTripHeadsign().replace("/", "_").replace(",", "");
-                String fixedRouteShortNameFileName = route.getShortName().replace("/", "B");
+                    } else {
+                        ImportLogger.log(STOPS_ONLY_RELATIONS, () -> "@|yellow Creating stops-only relation " + trip.getTripHeadsign() + " tripId=" + trip.getTripId() + " ...|@");
+                    }
 
+                    String fixedTripHeadsignFileName = trip.getTripHeadsign().replace("/", "_").replace(",", "");
+                    String fixedRouteShortNameFileName = route.getShortName().replace("/", "B");
 
-                File relationOutputFile = new File(GTFSImportSettings.getInstance().getFullRelsOutputPath() + "r" + tempid + " " + fixedRouteShortNameFileName + " " + fixedTripHeadsignFileName + "_" + count + ".osm");
 
-                FileOutputStream fileOutputStream = new FileOutputStream(relationOutputFile);
-                OutputStreamWriter out = new OutputStreamWriter(fileOutputStream, StandardCharsets.UTF_8);
+                    File relationOutputFile = new File(GTFSImportSettings.getInstance().getFullRelsOutputPath() + "r" + tempid + " " + fixedRouteShortNameFileName + " " + fixedTripHeadsignFileName + "_" + count + ".osm");
 
-                out.write(OSMRelationImportGenerator.createSingleTripRelation(boundingBox, osmWayIds, trip, route, gtfsFeedInfo, tempid));
-                out.close();
+                    FileOutputStream fileOutputStream = new FileOutputStream(relationOutputFile);
+                    OutputStreamWriter out = new OutputStreamWriter(fileOutputStream, StandardCharsets.UTF_8);
 
+                    out.write(OSMRelationImportGenerator.createSingleTripRelation(boundingBox, osmWayIds, trip, route, gtfsFeedInfo, tempid));
+                    out.close();
 
-                //we add the file to the merge list
-                relationsFileList.add(relationOutputFile);
 
-                //printa il file txt delle fermate con i nomi di esse
-                //f = new FileOutputStream(GTFSImportSettings.getInstance().getFullRelsOutputPath() + "r" + tempid + " " + fixedRouteShortNameFileName + " " + fixedTripHeadsignFileName + "_" + count + ".txt");
-                //f.write(tripStopsList.getStopsListTextFile().getBytes());
-                //f.close();
+                    //we add the file to the merge list
+                    relationsFileList.add(relationOutputFile);
 
-                newRelationsIds.add(tempid);
+                    //printa il file txt delle fermate con i nomi di esse
+                    //f = new FileOutputStream(GTFSImportSettings.getInstance().getFullRelsOutputPath() + "r" + tempid + " " + fixedRouteShortNameFileName + " " + fixedTripHeadsignFileName + "_" + count + ".txt");
+                    //f.write(tripStopsList.getStopsListTextFile().getBytes());
+                    //f.close();
 
-                tempid++;
-            }
+                    newRelationsIds.add(tempid);
 
+                    tempid++;
+                }
 
 
-            String fixedRouteShortNameFileName = route.getShortName().replace("/", "B");
-            //master relation creation
-            File routeMasterOutputFile = new File(GTFSImportSettings.getInstance().getFullRelsOutputPath() + "routemasterfiles/" + fixedRouteShortNameFileName +".osm");
-            routeMasterOutputFile.getParentFile().mkdirs(); //we create the required parent folder and not a folder with the filename
 
-            FileOutputStream fileOutputStream = new FileOutputStream(routeMasterOutputFile);
-            OutputStreamWriter out = new OutputStreamWriter(fileOutputStream, StandardCharsets.UTF_8);
+                String fixedRouteShortNameFileName = route.getShortName().replace("/", "B");
+                //master relation creation
+                File routeMasterOutputFile = new File(GTFSImportSettings.getInstance().getFullRelsOutputPath() + "routemasterfiles/" + fixedRouteShortNameFileName +".osm");
+                routeMasterOutputFile.getParentFile().mkdirs(); //we create the required parent folder and not a folder with the filename
 
-            out.write(OSMRelationImportGenerator.createMasterRouteTripsRelation(route, newRelationsIds, boundingBox, tempid));
-            out.close();
+                FileOutputStream fileOutputStream = new FileOutputStream(routeMasterOutputFile);
+                OutputStreamWriter out = new OutputStreamWriter(fileOutputStream, StandardCharsets.UTF_8);
+
+                out.write(OSMRelationImportGenerator.createMasterRouteTripsRelation(route, newRelationsIds, boundingBox, tempid));
+                out.close();
 
 
-            //we add the file to the merge list
-            relationsFileList.add(routeMasterOutputFile);
+                //we add the file to the merge list
+                relationsFileList.add(routeMasterOutputFile);
 
-            tempid++;
+                tempid++;
 
+            }
+        } finally {
+            //if a match or a relation file fails, the shapes not matched yet are not needed anymore
+            for (Future<List<Integer>> osmWayIdsFuture : tripOsmWayIdsMap.values()) {
+                osmWayIdsFuture.cancel(true);
+            }
+
+            waysMatchingPool.shutdownNow();
         }
 
+        GTFSOSMWaysMatch.summarizeMatches();
+        ImportLogger.summarize(WAY_MATCHED_RELATIONS, STOPS_ONLY_RELATIONS);
+
 
         //we merge all the files together
         File mergedRelationsFile = new File(GTFSImportSettings.getInstance().getOutputPath() + "gtfs_import_mergedFullRelations.osm");
@@ -204,4 +255,48 @@ public class CmdGenerateRoutesFullRelations implements Callable<Void> {
 
         return null;
     }
+
+    /***
+     * Submits the matching of every distinct shape (by geometry, as many trips of a route share the same shape and only differ in the stops),
+     * from the longest shapes to the shortest ones: the workers take the next shape from any route as soon as they are free,
+     * so the longest shapes don't end up being matched last by a single worker
+     * @return the matching of the shape of every trip, the trips with the same shape share the same result
+     */
+    private static Map<Trip, Future<List<Integer>>> submitShapesMatching(Collection<List<Trip>> tripsLists, Map<String, Shape> shapes, GTFSOSMWaysMatch osmmatchinstance, ForkJoinPool pool) {
+        Map<String, String> shapeIdGeometryKeyMap = new HashMap<>();
+        //the first trip of every distinct shape, in the order of the routes
+        Map<String, Trip> geometryKeyTripMap = new LinkedHashMap<>();
+        int tripsCount = 0;
+
+        for (List<Trip> tripsList : tripsLists) {
+            for (Trip trip : tripsList) {
+                String geometryKey = shapeIdGeometryKeyMap.computeIfAbsent(trip.getShapeId(), shapeId -> shapes.get(shapeId).getGeometryKey());
+                geometryKeyTripMap.putIfAbsent(geometryKey, trip);
+                tripsCount++;
+            }
+        }
+
+        List<Trip> shapesTrips = new ArrayList<>(geometryKeyTripMap.values());
+
+        //stable sort, so the shapes with the same length are submitted in the order of the routes
+        shapesTrips.sort(Comparator.comparingInt((Trip trip) -> shapes.get(trip.getShapeId()).getPoints().size()).reversed());
+
+        Map<String, Future<List<Integer>>> geometryKeyMatchMap = new HashMap<>();
+        for (Trip trip : shapesTrips) {
+            String xmlGPXShape = shapes.get(trip.getShapeId()).getGPXasSegment(trip.getRoute().getShortName());
+            geometryKeyMatchMap.put(shapeIdGeometryKeyMap.get(trip.getShapeId()), pool.submit(() -> osmmatchinstance.matchGPX(xmlGPXShape)));
+        }
+
+        Map<Trip, Future<List<Integer>>> result = new HashMap<>();
+        for (List<Trip> tripsList : tripsLists) {
+            for (Trip trip : tripsList) {
+                result.put(trip, geometryKeyMatchMap.get(shapeIdGeometryKeyMap.get(trip.getShapeId())));
+            }
+        }
+
+        System.out.println(ansi().render("@|cyan Matching " + shapesTrips.size() + " distinct shapes for " + tripsCount + " unique trips ("
+                + String.format(Locale.ROOT, "%.2f", (shapesTrips.isEmpty()) ? 0 : (double) tripsCount / shapesTrips.size()) + " trips per shape) with the OSM ways |@"));
+
+        return result;
+    }
 }
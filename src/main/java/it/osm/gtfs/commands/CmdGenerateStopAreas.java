@@ -0,0 +1,249 @@
+/**
+ * Licensed under the GNU General Public License version 3
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.gnu.org/licenses/gpl-3.0.html
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package it.osm.gtfs.commands;
+
+import it.osm.gtfs.enums.OSMStopType;
+import it.osm.gtfs.input.GTFSParser;
+import it.osm.gtfs.input.OSMParser;
+import it.osm.gtfs.models.BoundingBox;
+import it.osm.gtfs.models.GTFSStop;
+import it.osm.gtfs.models.OSMStop;
+import it.osm.gtfs.output.OSMBusImportGenerator;
+import it.osm.gtfs.utils.*;
+import org.fusesource.jansi.Ansi;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+import picocli.CommandLine;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Callable;
+
+import static org.fusesource.jansi.Ansi.ansi;
+
+
+@CommandLine.Command(name = "stopareas", mixinStandardHelpOptions = true, description = "Generate the public_transport=stop_area relations grouping the platforms and the stop positions of the matched stops")
+public class CmdGenerateStopAreas implements Callable<Void> {
+
+    private static final List<OSMStopType> STOP_POSITION_TYPES = List.of(OSMStopType.BUS_STOP_POSITION, OSMStopType.TRAM_STOP_POSITION,
+            OSMStopType.TRAIN_STOP_POSITION, OSMStopType.SUBWAY_STOP_POSITION);
+
+    @CommandLine.Option(names = {"-s", "--skipupdate"}, description = "Skip OSM data update (not recommended)")
+    Boolean noUpdate = false;
+    @CommandLine.Option(names = {"-r", "--radius"}, description = "Maximum distance in meters between the stops with the same name of a stop area without parent_station, and between a stop position and the platforms of its stop area (default: ${DEFAULT-VALUE})")
+    double radius = 50;
+    @CommandLine.Option(names = {"-m", "--minstops"}, description = "Minimum number of stops with the same name within the radius to create a stop area without parent_station (default: ${DEFAULT-VALUE})")
+    int minStops = 2;
+    @CommandLine.Mixin
+    private SharedCliOptions sharedCliOptions;
+
+    @Override
+    public Void call() throws IOException, ParserConfigurationException, SAXException, TransformerException, InterruptedException {
+
+        if (!noUpdate) {
+            new CmdUpdateGTFSOSMData().call();
+        }
+
+        String gtfsStopsFilePath = GTFSImportSettings.getInstance().getGTFSDataPath() + GTFSImportSettings.GTFS_STOP_FILE_NAME;
+
+        List<GTFSStop> gtfsStopsList = GTFSParser.readStops(gtfsStopsFilePath);
+        Map<String, String> stationsNames = GTFSParser.readStationsNames(gtfsStopsFilePath);
+        BoundingBox bb = new BoundingBox(gtfsStopsList);
+
+        List<OSMStop> osmStopsList = OSMParser.readOSMStops(GTFSImportSettings.getInstance().getOsmStopsFilePath(), SharedCliOptions.checkStopsOfAnyOperatorTagValue);
+
+        //the stop areas are made of the OSM stops, so the GTFS stops need to be matched first
+        new MatchUtils().doStopsMatching(gtfsStopsList, osmStopsList);
+
+        List<List<GTFSStop>> stopAreas = StopAreasUtils.getStopAreas(gtfsStopsList, radius, minStops);
+
+        List<List<OSMStop>> stopAreasPlatforms = new ArrayList<>();
+        int notMatchedStops = 0;
+
+        for (List<GTFSStop> stopArea : stopAreas) {
+            List<OSMStop> platforms = new ArrayList<>();
+
+            for (GTFSStop gtfsStop : stopArea) {
+                if (gtfsStop.osmStopMatchedWith != null) {
+                    platforms.add(gtfsStop.osmStopMatchedWith);
+                } else {
+                    notMatchedStops++;
+                }
+            }
+
+            stopAreasPlatforms.add(platforms);
+        }
+
+        //the stop positions matched with a GTFS stop belong to the area of that stop, so they are not assigned by proximity
+        Set<OSMStop> matchedStopPositions = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        for (GTFSStop gtfsStop : gtfsStopsList) {
+            if (gtfsStop.railwayStopMatchedWith != null) {
+                matchedStopPositions.add(gtfsStop.railwayStopMatchedWith);
+            }
+        }
+
+        List<List<OSMStop>> stopAreasStopPositions = getStopAreasStopPositions(osmStopsList, stopAreasPlatforms, matchedStopPositions);
+
+        OSMBusImportGenerator buffer = new OSMBusImportGenerator(bb);
+        Set<OSMStop> appendedNodes = Collections.newSetFromMap(new IdentityHashMap<>());
+        int generatedStopAreas = 0;
+
+        for (int i = 0; i < stopAreas.size(); i++) {
+            List<OSMStop> platforms = stopAreasPlatforms.get(i);
+            List<OSMStop> stopPositions = new ArrayList<>();
+
+            for (GTFSStop gtfsStop : stopAreas.get(i)) {
+                if (gtfsStop.railwayStopMatchedWith != null) {
+                    stopPositions.add(gtfsStop.railwayStopMatchedWith);
+                }
+            }
+
+            for (OSMStop stopPosition : stopAreasStopPositions.get(i)) {
+                if (!stopPositions.contains(stopPosition)) {
+                    stopPositions.add(stopPosition);
+                }
+            }
+
+            //a stop area with a single member isn't useful
+            if (platforms.size() + stopPositions.size() < 2) {
+                continue;
+            }
+
+            //the member nodes are added to the file too, so that JOSM can show the relations with their members
+            for (OSMStop member : platforms) {
+                if (appendedNodes.add(member)) {
+                    buffer.appendNode((Element) member.originalXMLNode);
+                }
+            }
+
+            for (OSMStop member : stopPositions) {
+                if (appendedNodes.add(member)) {
+                    buffer.appendNode((Element) member.originalXMLNode);
+                }
+            }
+
+            generatedStopAreas++;
+
+            String parentStation = stopAreas.get(i).get(0).getParentStation();
+            String name = (parentStation != null && stationsNames.containsKey(parentStation)) ? stationsNames.get(parentStation) : stopAreas.get(i).get(0).getFixedName();
+
+            buffer.appendNode(createStopAreaRelation(buffer, generatedStopAreas, name, parentStation, platforms, stopPositions));
+        }
+
+        buffer.end();
+
+        if (generatedStopAreas > 0) {
+            buffer.saveTo(new FileOutputStream(GTFSImportSettings.getInstance().getOutputPath() + GTFSImportSettings.OUTPUT_STOP_AREAS));
+            System.out.println(ansi().fg(Ansi.Color.GREEN).a("Generated stop areas: ").reset().a(generatedStopAreas).fg(Ansi.Color.YELLOW).a(" (created osm change file to review: " + GTFSImportSettings.OUTPUT_STOP_AREAS + ")").reset());
+        } else {
+            System.out.println(ansi().fg(Ansi.Color.GREEN).a("Generated stop areas: ").reset().a(generatedStopAreas));
+        }
+
+        if (notMatchedStops > 0) {
+            System.out.println(ansi().render("@|yellow " + notMatchedStops + " GTFS stops of the stop areas are not matched with an OSM stop, run the stops command and import the new stops first to add them to the stop areas |@"));
+        }
+
+        return null;
+    }
+
+    /***
+     * Assigns every OSM stop position to the stop area with the closest platform within the radius, if any
+     * @param excludedStopPositions the stop positions not to assign
+     * @return the stop positions of every stop area, in the order of the OSM stops list
+     */
+    private List<List<OSMStop>> getStopAreasStopPositions(List<OSMStop> osmStopsList, List<List<OSMStop>> stopAreasPlatforms, Set<OSMStop> excludedStopPositions) {
+        OSMStopsSpatialIndex osmStopsSpatialIndex = new OSMStopsSpatialIndex(osmStopsList);
+
+        Map<OSMStop, Integer> stopPositionsAreasMap = new IdentityHashMap<>();
+        Map<OSMStop, Double> stopPositionsDistancesMap = new IdentityHashMap<>();
+
+        for (int i = 0; i < stopAreasPlatforms.size(); i++) {
+            for (OSMStop platform : stopAreasPlatforms.get(i)) {
+                for (OSMStopType stopPositionType : STOP_POSITION_TYPES) {
+                    for (OSMStop stopPosition : osmStopsSpatialIndex.getCandidateStops(platform.getGeoPosition(), radius, stopPositionType)) {
+                        if (excludedStopPositions.contains(stopPosition)) {
+                            continue;
+                        }
+
+                        double distance = StopsDistanceUtils.distance(platform.getGeoPosition(), stopPosition.getGeoPosition());
+
+                        //the areas are checked in order, so with the same distance the first area wins
+                        if (distance < radius && distance < stopPositionsDistancesMap.getOrDefault(stopPosition, Double.MAX_VALUE)) {
+                            stopPositionsAreasMap.put(stopPosition, i);
+                            stopPositionsDistancesMap.put(stopPosition, distance);
+                        }
+                    }
+                }
+            }
+        }
+
+        List<List<OSMStop>> result = new ArrayList<>();
+        for (int i = 0; i < stopAreasPlatforms.size(); i++) {
+            result.add(new ArrayList<>());
+        }
+
+        for (Map.Entry<OSMStop, Integer> entry : stopPositionsAreasMap.entrySet()) {
+            result.get(entry.getValue()).add(entry.getKey());
+        }
+
+        for (List<OSMStop> stopPositions : result) {
+            osmStopsSpatialIndex.sortByListOrder(stopPositions);
+        }
+
+        return result;
+    }
+
+    private static Element createStopAreaRelation(OSMBusImportGenerator buffer, int id, String name, String parentStation, List<OSMStop> platforms, List<OSMStop> stopPositions) {
+        Element relation = buffer.createElement("relation");
+        relation.setAttribute("id", "-" + id);
+        relation.setAttribute("visible", "true");
+
+        for (OSMStop platform : platforms) {
+            relation.appendChild(createMemberElement(buffer, platform, "platform"));
+        }
+
+        for (OSMStop stopPosition : stopPositions) {
+            relation.appendChild(createMemberElement(buffer, stopPosition, "stop"));
+        }
+
+        relation.appendChild(OSMXMLUtils.createTagElement(buffer, "type", "public_transport"));
+        relation.appendChild(OSMXMLUtils.createTagElement(buffer, "public_transport", "stop_area"));
+        relation.appendChild(OSMXMLUtils.createTagElement(buffer, "name", name));
+        relation.appendChild(OSMXMLUtils.createTagElement(buffer, "operator", GTFSImportSettings.getInstance().getOperator()));
+
+        if (parentStation != null) {
+            relation.appendChild(OSMXMLUtils.createTagElement(buffer, "gtfs_id", parentStation));
+        }
+
+        if (GTFSImportSettings.getInstance().useRevisedKey()) {
+            relation.appendChild(OSMXMLUtils.createTagElement(buffer, GTFSImportSettings.REVISED_KEY, "no"));
+        }
+
+        return relation;
+    }
+
+    private static Element createMemberElement(OSMBusImportGenerator buffer, OSMStop osmStop, String role) {
+        Element member = buffer.createElement("member");
+        member.setAttribute("type", "node");
+        member.setAttribute("ref", osmStop.getOSMId());
+        member.setAttribute("role", role);
+
+        return member;
+    }
+}
@@ -33,6 +33,13 @@ public class CmdGetBoundingBox implements Callable<Void> {
 
         System.out.println("GTFS bounding box: " + bb);
 
+        List<BoundingBox> regions = BoundingBox.getClusteredRegions(gtfs, GTFSImportSettings.getInstance().getOverpassRegionClusterDistanceDegrees());
+        System.out.println("GTFS download regions (" + regions.size() + "):");
+
+        for (BoundingBox region : regions) {
+            System.out.println(" " + region);
+        }
+
         return null;
     }
 
@@ -15,7 +15,9 @@
 package it.osm.gtfs.commands;
 
 import it.osm.gtfs.input.GTFSParser;
+import it.osm.gtfs.input.OSMDataStore;
 import it.osm.gtfs.input.OSMParser;
+import it.osm.gtfs.input.OsmChangeApplier;
 import it.osm.gtfs.models.*;
 import it.osm.gtfs.utils.*;
 import org.apache.commons.httpclient.util.URIUtil;
@@ -37,15 +39,20 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import static org.fusesource.jansi.Ansi.ansi;
 
 @CommandLine.Command(name = "update", mixinStandardHelpOptions = true, description = "Generate/update data from OpenStreetMap")
 public class CmdUpdateGTFSOSMData implements Callable<Void> {
 
+    @CommandLine.Option(names = {"--diffs"}, description = "Update the local OSM data applying the osmChange files (.osc/.osc.gz) of this directory instead of downloading it again")
+    File osmChangesDirectory;
+
     @Override
     public Void call() throws IOException, InterruptedException, ParserConfigurationException, SAXException, TransformerException {
 
@@ -55,9 +62,26 @@ public class CmdUpdateGTFSOSMData implements Callable<Void> {
             cachedirectory.mkdirs();
             osmdatadirectory.mkdirs();
 
-            updateGTFSData();
-            updateBusStops();
-            updateFullRels();
+            if (osmChangesDirectory != null) {
+                updateGTFSData();
+                applyOsmChanges(osmChangesDirectory);
+
+                System.out.println(ansi().fg(Ansi.Color.GREEN).a("GTFS and OSM data incremental update completed.").reset());
+                return null;
+            }
+
+            ArtifactCache artifactCache = ArtifactCache.fromSettings();
+
+            try (OverpassFetchScheduler fetchScheduler = OverpassFetchScheduler.fromSettings()) {
+                //the relations query doesn't depend on the GTFS data, so it is downloaded while we update the rest
+                Future<File> relationsDownload = downloadRelations(fetchScheduler);
+
+                updateGTFSData();
+                updateBusStops(fetchScheduler, artifactCache);
+                updateFullRels(fetchScheduler.await(relationsDownload), artifactCache);
+            }
+
+            artifactCache.evict();
 
             System.out.println(ansi().fg(Ansi.Color.GREEN).a("GTFS and OSM data update completed.").reset());
 
@@ -69,76 +93,154 @@ public class CmdUpdateGTFSOSMData implements Callable<Void> {
         DownloadUtils.downloadZip(GTFSImportSettings.getInstance().getGTFSZipUrl(), GTFSImportSettings.getInstance().getGTFSDataPath());
     }
 
-    private static void updateBusStops() throws IOException, InterruptedException {
+    private static void updateBusStops(OverpassFetchScheduler fetchScheduler, ArtifactCache artifactCache) throws IOException, InterruptedException {
 
         String overpassApiServer = GTFSImportSettings.getInstance().getOverpassApiServer();
 
         List<GTFSStop> gtfsStops = GTFSParser.readStops(GTFSImportSettings.getInstance().getGTFSDataPath() + GTFSImportSettings.GTFS_STOP_FILE_NAME);
-        BoundingBox bb = new BoundingBox(gtfsStops);
+        List<BoundingBox> downloadRegions = BoundingBox.getClusteredRegions(gtfsStops, GTFSImportSettings.getInstance().getOverpassRegionClusterDistanceDegrees());
+
+        //temp file name -> node filters of every stop type (the active feature and its disused counterpart)
+        Map<String, String> stopsQueriesMap = new LinkedHashMap<>();
+        stopsQueriesMap.put("tmp_busstops.osm", "node[highway=bus_stop];node[\"disused:highway\"=bus_stop];");
+        stopsQueriesMap.put("tmp_stoppositions.osm", "node[public_transport=stop_position];node[\"disused:public_transport\"=stop_position];");
+        stopsQueriesMap.put("tmp_tramstops.osm", "node[railway=tram_stop];node[\"disused:railway\"=tram_stop];");
+        stopsQueriesMap.put("tmp_metrostops.osm", "node[railway=station];node[\"disused:railway\"=station];");
+        stopsQueriesMap.put("tmp_stationstops.osm", "node[public_transport=station];node[\"disused:public_transport\"=station];");
+
+        if (GTFSImportSettings.getInstance().useOverpassUnionQuery()) {
+            //a single union query for all the stop types, overpass removes the duplicated nodes for us
+            stopsQueriesMap = Map.of("tmp_allstops.osm", String.join("", stopsQueriesMap.values()));
+        }
 
-        String queryBusStopsUrl = "?data=[bbox];(node[highway=bus_stop];node[\"disused:highway\"=bus_stop];);out meta;&bbox=" + bb.getAPIQuery();
-        File busFileTemp = new File(GTFSImportSettings.getInstance().getCachePath() + "tmp_busstops.osm");
-        URIUtil.encodeQuery(queryBusStopsUrl);
+        List<Future<File>> stopsDownloads = new ArrayList<>();
 
-        String busStopsUrl = overpassApiServer + URIUtil.encodeQuery(queryBusStopsUrl);
+        for (Map.Entry<String, String> stopsQuery : stopsQueriesMap.entrySet()) {
+            //every node filter is repeated for each region with its own bbox, the union gives back every node only once
+            StringBuilder regionsStatements = new StringBuilder();
+            for (BoundingBox region : downloadRegions) {
+                regionsStatements.append(stopsQuery.getValue().replace(";", region.getOverpassFilter() + ";"));
+            }
 
-        DownloadUtils.download(busStopsUrl, busFileTemp, false);
+            String queryStopsUrl = "?data=(" + regionsStatements + ");out meta;";
+            File stopsFileTemp = new File(GTFSImportSettings.getInstance().getCachePath() + stopsQuery.getKey());
 
-        Thread.sleep(1000L);
+            stopsDownloads.add(fetchScheduler.submit(overpassApiServer + URIUtil.encodeQuery(queryStopsUrl), stopsFileTemp, false));
+        }
 
-        String queryStopPositionsUrl = "?data=[bbox];(node[public_transport=stop_position];node[\"disused:public_transport\"=stop_position];);out meta;&bbox=" + bb.getAPIQuery();
-        File stopPositionsFileTemp = new File(GTFSImportSettings.getInstance().getCachePath() + "tmp_stoppositions.osm");
-        String stopPositionsUrl = overpassApiServer + URIUtil.encodeQuery(queryStopPositionsUrl);
-        DownloadUtils.download(stopPositionsUrl, stopPositionsFileTemp, false);
+        List<File> tempFileList = fetchScheduler.awaitAll(stopsDownloads);
 
-        Thread.sleep(1000L);
+        File finalMergedFileOut = new File(GTFSImportSettings.getInstance().getOsmStopsFilePath());
 
-        String queryTramStopsUrl = "?data=[bbox];(node[railway=tram_stop];node[\"disused:railway\"=tram_stop];);out meta;&bbox=" + bb.getAPIQuery();
-        File tramFileTemp = new File(GTFSImportSettings.getInstance().getCachePath() + "tmp_tramstops.osm");
-        String tramStopsUrl = overpassApiServer + URIUtil.encodeQuery(queryTramStopsUrl);;
-        DownloadUtils.download(tramStopsUrl, tramFileTemp, false);
+        //if the downloaded stops didn't change since a previous run we reuse the merged file of that run
+        String mergedStopsKey = artifactCache.getKey("osm-stops", Map.of(), tempFileList);
 
-        Thread.sleep(2000L);
+        if (!artifactCache.restore(mergedStopsKey, finalMergedFileOut)) {
+            OsmosisUtils.checkProcessOutput(OsmosisUtils.runOsmosisMerge(tempFileList, finalMergedFileOut));
+            artifactCache.store(mergedStopsKey, "osm-stops", Map.of(), tempFileList, finalMergedFileOut);
+        }
 
-        String queryMetroTrainStationsUrl = "?data=[bbox];(node[railway=station];node[\"disused:railway\"=station];);out meta;&bbox=" + bb.getAPIQuery();
-        File metroFileTemp = new File(GTFSImportSettings.getInstance().getCachePath() + "tmp_metrostops.osm");
-        String metroTrainStationsUrl = overpassApiServer + URIUtil.encodeQuery(queryMetroTrainStationsUrl);
-        DownloadUtils.download(metroTrainStationsUrl, metroFileTemp, false);
+        //the next incremental update starts from the changes after this download
+        OsmChangeApplier.writeDownloadState(finalMergedFileOut, tempFileList);
+    }
+
+    private static void applyOsmChanges(File changesDirectory) throws IOException, SAXException {
+        File stopsFile = new File(GTFSImportSettings.getInstance().getOsmStopsFilePath());
+        File relationsFile = new File(GTFSImportSettings.getInstance().getOsmRelationsFilePath());
+        File waysFile = new File(GTFSImportSettings.getInstance().getOsmOverpassWaysFilePath());
 
-        String queryUrlstat = "?data=[bbox];(node[public_transport=station];node[\"disused:public_transport\"=station];);out meta;&bbox=" + bb.getAPIQuery();
-        File stationsFileTemp = new File(GTFSImportSettings.getInstance().getCachePath() + "tmp_stationstops.osm");
-        String urlstat = overpassApiServer + URIUtil.encodeQuery(queryUrlstat);
-        DownloadUtils.download(urlstat, stationsFileTemp, false);
+        if (!stopsFile.exists() || !relationsFile.exists()) {
+            throw new IllegalStateException("The osmChange files can be applied only to existing OSM data, please run the update command without --diffs first!");
+        }
 
-        List<File> tempFileList = new ArrayList<>();
-        tempFileList.add(busFileTemp);
-        tempFileList.add(stopPositionsFileTemp);
-        tempFileList.add(tramFileTemp);
-        tempFileList.add(metroFileTemp);
-        tempFileList.add(stationsFileTemp);
+        List<GTFSStop> gtfsStops = GTFSParser.readStops(GTFSImportSettings.getInstance().getGTFSDataPath() + GTFSImportSettings.GTFS_STOP_FILE_NAME);
+        List<BoundingBox> regions = BoundingBox.getClusteredRegions(gtfsStops, GTFSImportSettings.getInstance().getOverpassRegionClusterDistanceDegrees());
+
+        //the new stops are added only if they are in the GTFS regions, the existing ones are removed if they aren't stops anymore
+        new OsmChangeApplier((element, isLocal) -> isStopNode(element) && (isLocal || isInRegions(element, regions)))
+                .applyChangesDirectory(stopsFile, changesDirectory);
+
+        //the new relations of our network are added and the ones moved to another network are removed,
+        //but the new members of the relations are downloaded only with the next full update
+        new OsmChangeApplier((element, isLocal) -> element.getName().equals("relation")
+                ? GTFSImportSettings.getInstance().getNetwork().equals(element.getTag("network")) : isLocal)
+                .applyChangesDirectory(relationsFile, changesDirectory);
+
+        //the ways that aren't highways anymore are removed
+        if (waysFile.exists()) {
+            new OsmChangeApplier((element, isLocal) -> switch (element.getName()) {
+                case "node" -> isLocal || isInRegions(element, regions);
+                case "way" -> element.getTag("highway") != null;
+                default -> isLocal;
+            }).applyChangesDirectory(waysFile, changesDirectory);
+        }
+    }
 
-        File finalMergedFileOut = new File(GTFSImportSettings.getInstance().getOsmStopsFilePath());
+    private static boolean isStopNode(OSMDataStore.StoredElement element) {
+        if (!element.getName().equals("node")) {
+            return false;
+        }
+
+        for (String prefix : new String[]{"", "disused:"}) {
+            String highway = element.getTag(prefix + "highway");
+            String publicTransport = element.getTag(prefix + "public_transport");
+            String railway = element.getTag(prefix + "railway");
+
+            if ("bus_stop".equals(highway) || "stop_position".equals(publicTransport) || "station".equals(publicTransport)
+                    || "tram_stop".equals(railway) || "station".equals(railway)) {
+                return true;
+            }
+        }
 
-        OsmosisUtils.checkProcessOutput(OsmosisUtils.runOsmosisMerge(tempFileList, finalMergedFileOut));
+        return false;
     }
 
-    //todo: we should cleanup the cache relations files before every update i think
-    private static void updateFullRels() throws ParserConfigurationException, SAXException, IOException, TransformerException {
+    private static boolean isInRegions(OSMDataStore.StoredElement node, List<BoundingBox> regions) {
+        if (node.getAttribute("lat") == null) {
+            return false;
+        }
+
+        for (BoundingBox region : regions) {
+            if (node.getLat() >= region.getMinLat() && node.getLat() <= region.getMaxLat()
+                    && node.getLon() >= region.getMinLon() && node.getLon() <= region.getMaxLon()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static Future<File> downloadRelations(OverpassFetchScheduler fetchScheduler) throws IOException {
         String overpassApiServer = GTFSImportSettings.getInstance().getOverpassApiServer();
 
         //we download the relations data
         String queryRel = "?data=(relation[network=" + GTFSImportSettings.getInstance().getNetwork() +  "];>;);out meta;";
-        String urlrel = overpassApiServer + URIUtil.encodeQuery(queryRel);;
+        String urlrel = overpassApiServer + URIUtil.encodeQuery(queryRel);
 
         File uncheckedRelsFile = new File(GTFSImportSettings.getInstance().getCachePath() + "tmp_unchecked_rels.osm");
-        DownloadUtils.download(urlrel, uncheckedRelsFile, false);
 
+        return fetchScheduler.submit(urlrel, uncheckedRelsFile, false);
+    }
+
+    private static void updateFullRels(File uncheckedRelsFile, ArtifactCache artifactCache) throws ParserConfigurationException, SAXException, IOException, TransformerException {
+        File stopsFile = new File(GTFSImportSettings.getInstance().getOsmStopsFilePath());
+        File relationsFile = new File(GTFSImportSettings.getInstance().getOsmRelationsFilePath());
+
+        //the relations file depends only on the downloaded relations, the stops and the operator check option
+        Map<String, String> relationsParameters = Map.of("checkStopsOfAnyOperator", String.valueOf(SharedCliOptions.checkStopsOfAnyOperatorTagValue));
+        List<File> relationsInputs = List.of(uncheckedRelsFile, stopsFile);
+        String relationsKey = artifactCache.getKey("osm-relations", relationsParameters, relationsInputs);
+
+        if (artifactCache.restore(relationsKey, relationsFile)) {
+            OsmChangeApplier.writeDownloadState(relationsFile, List.of(uncheckedRelsFile));
+            return;
+        }
 
         List<OSMStop> osmStops = OSMParser.readOSMStops(GTFSImportSettings.getInstance().getOsmStopsFilePath(), true);
         Map<String, OSMStop> osmIdOSMStopMap = StopsUtils.getOSMIdOSMStopMap(osmStops);
 
         // Default to all available rel, then override forced updates
-        ReadOSMRelationsResult readRelsResult = OSMParser.readOSMRelations(new File(GTFSImportSettings.getInstance().getCachePath() +  "tmp_unchecked_rels.osm"), osmIdOSMStopMap, SharedCliOptions.checkStopsOfAnyOperatorTagValue);
+        ReadOSMRelationsResult readRelsResult = OSMParser.readOSMRelations(uncheckedRelsFile, osmIdOSMStopMap, SharedCliOptions.checkStopsOfAnyOperatorTagValue);
 
         
         DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
@@ -177,15 +279,18 @@ public class CmdUpdateGTFSOSMData implements Callable<Void> {
         OsmosisUtils.checkProcessOutput(OsmosisUtils.runOsmosisUnusedWaysNodes(checkedRelsFile, filteredRelsFile));
 
 
-        File stopsFile = new File(GTFSImportSettings.getInstance().getOsmStopsFilePath());
-
         List<File> sortedfilestest = new ArrayList<>();
         sortedfilestest.add(filteredRelsFile);
         sortedfilestest.add(stopsFile);
 
         //final relations file merge
-        File testout = new File(GTFSImportSettings.getInstance().getOsmRelationsFilePath());
-        OsmosisUtils.checkProcessOutput(OsmosisUtils.runOsmosisMerge(sortedfilestest, testout));
+        OsmosisUtils.checkProcessOutput(OsmosisUtils.runOsmosisMerge(sortedfilestest, relationsFile));
+
+        artifactCache.store(relationsKey, "osm-relations", relationsParameters, relationsInputs, relationsFile);
+        OsmChangeApplier.writeDownloadState(relationsFile, List.of(uncheckedRelsFile));
 
+        //the intermediate files are not needed anymore, the result is in the artifacts cache
+        checkedRelsFile.delete();
+        filteredRelsFile.delete();
     }
 }
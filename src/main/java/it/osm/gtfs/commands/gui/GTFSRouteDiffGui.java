@@ -5,6 +5,8 @@ import it.osm.gtfs.input.OSMParser;
 import it.osm.gtfs.models.*;
 import it.osm.gtfs.utils.GTFSImportSettings;
 import it.osm.gtfs.utils.SharedCliOptions;
+import it.osm.gtfs.utils.StopsMinHashIndex;
+import it.osm.gtfs.utils.StopsSequenceAlignment;
 import it.osm.gtfs.utils.StopsUtils;
 import org.fusesource.jansi.Ansi;
 import org.jdesktop.beansbinding.AutoBinding.UpdateStrategy;
@@ -38,6 +40,7 @@ public class GTFSRouteDiffGui extends JFrame implements ListSelectionListener, K
     Set<Trip> uniqueTripsMarkerOk = new HashSet<>();
     Set<Trip> uniqueTripsMarkerIgnore = new HashSet<>();
     List<WeightedRelation> osmRels;
+    StopsMinHashIndex<WeightedRelation> osmRelsMinHashIndex = new StopsMinHashIndex<>();
     List<Stop> currentGTFSStops = new ArrayList<>();
     Set<Stop> currentGTFSStopsMarker = new HashSet<>();
     List<Stop> currentOSMStops = new ArrayList<>();
@@ -99,6 +102,9 @@ public class GTFSRouteDiffGui extends JFrame implements ListSelectionListener, K
         osmstopsGTFSId = StopsUtils.getGTFSIdOSMStopMap(osmStops);
         osmstopsOsmID = StopsUtils.getOSMIdOSMStopMap(osmStops);
         osmRels = convertoToWigthed(OSMParser.readOSMRelations(new File(GTFSImportSettings.getInstance().getOsmRelationsFilePath()), osmstopsOsmID, SharedCliOptions.checkStopsOfAnyOperatorTagValue).getFinalValidRelations());
+        for (WeightedRelation r : osmRels) {
+            osmRelsMinHashIndex.add(r, r.getStops().values());
+        }
 
         routes = GTFSParser.readRoutes(GTFSImportSettings.getInstance().getGTFSDataPath() + GTFSImportSettings.GTFS_ROUTES_FILE_NAME);
         readStopTimesResult = GTFSParser.readStopTimes(GTFSImportSettings.getInstance().getGTFSDataPath() + GTFSImportSettings.GTFS_STOP_TIMES_FILE_NAME, osmstopsGTFSId);
@@ -134,7 +140,8 @@ public class GTFSRouteDiffGui extends JFrame implements ListSelectionListener, K
             if (tripIdMarkers.contains(t.getTripId())) {
                 uniqueTripsMarkerIgnore.add(t);
             }
-            for (WeightedRelation r : osmRels) {
+            //a relation with the same stops of the trip is always a candidate
+            for (WeightedRelation r : osmRelsMinHashIndex.getCandidates(t.getStopsList().getStopSequenceOSMStopMap().values())) {
                 if (r.getStopsAffinity(t.getStopsList()) == Integer.MAX_VALUE) {
                     uniqueTripsMarkerOk.add(t);
                     break;
@@ -202,7 +209,17 @@ public class GTFSRouteDiffGui extends JFrame implements ListSelectionListener, K
     }
 
     private void updateAffinity(Trip selectedTrip) {
+        //only the relations with similar stops are compared, unless there are none
+        List<WeightedRelation> candidates = osmRelsMinHashIndex.getCandidates(selectedTrip.getStopsList().getStopSequenceOSMStopMap().values());
+        if (candidates.isEmpty()) {
+            candidates = osmRels;
+        }
+
         for (WeightedRelation r : osmRels) {
+            r.setWeight(Integer.MIN_VALUE);
+            r.setWeightstr("-");
+        }
+        for (WeightedRelation r : candidates) {
             r.setWeight(r.getStopsAffinity(selectedTrip.getStopsList()));
         }
         Collections.sort(osmRels);
@@ -231,18 +248,14 @@ public class GTFSRouteDiffGui extends JFrame implements ListSelectionListener, K
         if (currentGTFSStops.size() == 0 || currentOSMStops.size() == 0) {
             return;
         } else {
-            for (Stop s : currentGTFSStops)
-                if (currentOSMStops.contains(s) && currentGTFSStops.indexOf(s) >= currentOSMStops.indexOf(s)) {
-                    //equals
-                } else {
-                    currentGTFSStopsMarker.add(s);
-                }
-            for (Stop s : currentOSMStops)
-                if (currentGTFSStops.contains(s) && currentGTFSStops.indexOf(s) <= currentOSMStops.indexOf(s)) {
-                    //equals
-                } else {
-                    currentOSMStopsMarker.add(s);
+            for (StopsSequenceAlignment.AlignedStop alignedStop : StopsSequenceAlignment.align(currentOSMStops, currentGTFSStops)) {
+                if (alignedStop.getOperation() != StopsSequenceAlignment.Operation.SAME) {
+                    if (alignedStop.getTripStop() != null)
+                        currentGTFSStopsMarker.add(alignedStop.getTripStop());
+                    if (alignedStop.getRelationStop() != null)
+                        currentOSMStopsMarker.add(alignedStop.getRelationStop());
                 }
+            }
         }
         osmStopsList.repaint();
         gtfsStopsList.repaint();
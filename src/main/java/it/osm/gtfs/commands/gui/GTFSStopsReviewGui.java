@@ -1,7 +1,6 @@
 package it.osm.gtfs.commands.gui;
 
 import it.osm.gtfs.models.OSMStop;
-import it.osm.gtfs.utils.GTFSImportSettings;
 import org.jxmapviewer.JXMapKit;
 import org.jxmapviewer.VirtualEarthTileFactoryInfo;
 import org.jxmapviewer.viewer.DefaultTileFactory;
@@ -628,7 +627,7 @@ public class GTFSStopsReviewGui
 
 
         //we update the variout interface texts
-        labInfoStop1.setText(String.format(infoStopText1, currentStop.getCode(), GTFSImportSettings.getInstance().getPlugin().fixBusStopName(currentStop.gtfsStopMatchedWith)));
+        labInfoStop1.setText(String.format(infoStopText1, currentStop.getCode(), currentStop.gtfsStopMatchedWith.getFixedName()));
         labInfoStop2.setText(String.format(infoStopText2, finalReviewedGeopositions.size(), osmStopsToReview.size()));
         labOsmCoords.setText(String.format(textLabOsmCoords, osmStopCoords.getLatitude(), osmStopCoords.getLongitude()));
         labGtfsCoords.setText(String.format(textLabGtfsCoords, gtfsStopCoords.getLatitude(), gtfsStopCoords.getLongitude()));
@@ -643,7 +642,7 @@ public class GTFSStopsReviewGui
 
             OSMStop thisCellStop = (OSMStop) value;
 
-            setText(index + ") " + GTFSImportSettings.getInstance().getPlugin().fixBusStopName(thisCellStop.gtfsStopMatchedWith)
+            setText(index + ") " + thisCellStop.gtfsStopMatchedWith.getFixedName()
                     + " (ref: " + thisCellStop.getCode() + " - " + thisCellStop.getStopType() +")"); //make sure to use only name/data from the gtfs match as it could be more up to date than the osm one
 
 
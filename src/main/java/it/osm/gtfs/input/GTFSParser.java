@@ -20,6 +20,7 @@ import it.osm.gtfs.enums.RouteType;
 import it.osm.gtfs.enums.WheelchairAccess;
 import it.osm.gtfs.models.*;
 import it.osm.gtfs.utils.GTFSImportSettings;
+import it.osm.gtfs.utils.ImportLogger;
 import it.osm.gtfs.utils.SharedCliOptions;
 import org.fusesource.jansi.Ansi;
 import org.jxmapviewer.viewer.GeoPosition;
@@ -37,6 +38,9 @@ import java.util.regex.Pattern;
 import static org.fusesource.jansi.Ansi.ansi;
 
 public class GTFSParser {
+    private static final ImportLogger.Category SKIPPED_STATIONS = ImportLogger.category(ImportLogger.Level.INFO, "GTFS stations (groups of multiple stops) skipped");
+    private static final ImportLogger.Category MISSING_STOPS = ImportLogger.category(ImportLogger.Level.ERROR, "GTFS stops of the stop times not found in OpenStreetMap data");
+
 
     private static String sanitizeBOM(String s) {
         final String UTF8_BOM = "\uFEFF";
@@ -98,7 +102,8 @@ public class GTFSParser {
                 if (stopCode.length() > 0) {
                     if (locationTypeKey >= 0 && parentStationKey >= 0 && "1".equals(elements[locationTypeKey])) {
                         //this is a station (group of multiple stops)
-                        System.out.println(ansi().render("@|red GTFSParser: Skipped a station (group of multiple stops) with gtfs id: |@" + elements[stopIdKey]));
+                        String stationGtfsId = elements[stopIdKey];
+                        ImportLogger.log(SKIPPED_STATIONS, () -> "@|red GTFSParser: Skipped a station (group of multiple stops) with gtfs id: |@" + stationGtfsId);
                     } else {
 
 
@@ -121,21 +126,60 @@ public class GTFSParser {
                         //todo: probably we should remove this plugin call and instead find a way to include the stop type directly in the constructor up there
                         gtfsStop.setStopType(stopType);
 
+                        if (parentStationKey >= 0 && parentStationKey < elements.length && !elements[parentStationKey].isEmpty()) {
+                            gtfsStop.setParentStation(elements[parentStationKey]);
+                        }
+
 
                         if (GTFSImportSettings.getInstance().getPlugin().isValidStop(gtfsStop)) {
                             resultGtfsStopsList.add(gtfsStop);
                         }
                     }
                 } else {
-                    System.out.println(ansi().render("@|red GTFSParser: Failed to parse stops.txt line: |@" + thisLine));
+                    ImportLogger.log(ImportLogger.Level.ERROR, "@|red GTFSParser: Failed to parse stops.txt line: |@" + thisLine);
                 }
             }
         }
         br.close();
 
+        ImportLogger.summarize(SKIPPED_STATIONS);
+
         return resultGtfsStopsList;
     }
 
+    /***
+     * Reads the stations (location_type=1) of the stops file, which are skipped by readStops()
+     * @return the names of the stations by gtfs id
+     */
+    public static Map<String, String> readStationsNames(String fName) throws IOException {
+        Map<String, String> result = new HashMap<>();
+
+        try (BufferedReader br = new BufferedReader(new FileReader(fName, StandardCharsets.UTF_8))) {
+            String thisLine = br.readLine();
+
+            if (thisLine == null) {
+                return result;
+            }
+
+            List<String> keys = Arrays.asList(sanitizeBOM(thisLine).replace("\"", "").split(","));
+            int stopIdKey = keys.indexOf("stop_id"), stopNameKey = keys.indexOf("stop_name"), locationTypeKey = keys.indexOf("location_type");
+
+            if (stopIdKey == -1 || stopNameKey == -1 || locationTypeKey == -1) {
+                return result;
+            }
+
+            while ((thisLine = br.readLine()) != null) {
+                String[] elements = getElementsFromLine(thisLine, true);
+
+                if (locationTypeKey < elements.length && "1".equals(elements[locationTypeKey])) {
+                    result.put(elements[stopIdKey], elements[stopNameKey]);
+                }
+            }
+        }
+
+        return result;
+    }
+
     public static List<Trip> readTrips(String gtfsTripsFilePath, Map<String, Route> routes, Map<String, TripStopsList> stopTimes) throws IOException {
         List<Trip> finalTripsList = new ArrayList<>();
 
@@ -291,7 +335,7 @@ public class GTFSParser {
             count++;
 
             if (count % 100000 == 0)
-                System.out.println(ansi().fg(Ansi.Color.YELLOW).a("Stop times read so far: ").reset().a(count + "/" + numberOfLines));
+                ImportLogger.log(ImportLogger.Level.INFO, "@|yellow Stop times read so far: |@" + count + "/" + numberOfLines);
 
             if (isFirstLine) {
                 isFirstLine = false;
@@ -329,13 +373,15 @@ public class GTFSParser {
 
                         if (!missingStops.contains(thisLineGtfsID)) {
                             missingStops.add(thisLineGtfsID);
-                            System.out.println(ansi().render("@|red Warning: GTFS stop with gtfsId=" + thisLineGtfsID + " not found in OpenStreetMap data! The trip " + thisLineElements[trip_id] + " and maybe others won't be generated! |@"));
+                            String tripId = thisLineElements[trip_id];
+                            ImportLogger.log(MISSING_STOPS, () -> "@|red Warning: GTFS stop with gtfsId=" + thisLineGtfsID + " not found in OpenStreetMap data! The trip " + tripId + " and maybe others won't be generated! |@");
                         }
                     }
                 }
             }
         }
 
+        ImportLogger.summarize(MISSING_STOPS);
         System.out.println(ansi().fg(Ansi.Color.GREEN).a("Stop times read completed.").reset());
 
 
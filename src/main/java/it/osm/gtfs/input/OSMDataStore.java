@@ -0,0 +1,451 @@
+/**
+ * Licensed under the GNU General Public License version 3
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.gnu.org/licenses/gpl-3.0.html
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package it.osm.gtfs.input;
+
+import it.osm.gtfs.models.BoundingBox;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.*;
+import java.util.*;
+
+/***
+ * A binary copy of an OSM XML file (like the stops or relations files) that is much faster to load than the XML.
+ * The store is created next to the XML file the first time the file is read, and created again when the XML file changes.
+ * The loaded data can be replayed to the existing SAX handlers, and it has indexes on the element id,
+ * on the ref, gtfs_id and network tags and on the node positions, which are built the first time they are used.
+ */
+public class OSMDataStore {
+    private static final int STORE_FORMAT_VERSION = 1;
+    private static final String STORE_FILE_SUFFIX = ".store";
+    private static final int MAX_LOADED_STORES = 2;
+    private static final Set<String> INDEXED_TAG_KEYS = Set.of("ref", "gtfs_id", "network");
+    private static final double SPATIAL_CELL_DEGREES = 0.01;
+
+    //the last stores loaded in this run (useful in the interactive shell, where more commands read the same stops and relations files),
+    //the older ones are released so that the memory doesn't grow with every file read
+    private static final Map<String, OSMDataStore> loadedStores = new LinkedHashMap<>(MAX_LOADED_STORES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, OSMDataStore> eldest) {
+            return size() > MAX_LOADED_STORES;
+        }
+    };
+
+    private final List<StoredElement> elements;
+
+    private Map<String, StoredElement> idIndex;
+    private Map<String, List<StoredElement>> tagIndex;
+    private Map<Long, List<StoredElement>> spatialIndex;
+    //the position of the indexed nodes in the file, to return the nodes of many cells in the file order
+    private Map<StoredElement, Integer> spatialIndexOrder;
+
+    private final long sourceLength;
+    private final long sourceLastModified;
+
+    private OSMDataStore(List<StoredElement> elements, long sourceLength, long sourceLastModified) {
+        this.elements = elements;
+        this.sourceLength = sourceLength;
+        this.sourceLastModified = sourceLastModified;
+    }
+
+    /***
+     * Loads the store of the OSM XML file, creating it if it doesn't exist or if it is older than the XML file
+     */
+    public static synchronized OSMDataStore open(File osmFile) throws IOException, SAXException {
+        String storeKey = osmFile.getAbsolutePath();
+        OSMDataStore store = loadedStores.get(storeKey);
+
+        if (store != null && store.isValidFor(osmFile)) {
+            return store;
+        }
+
+        File storeFile = new File(osmFile.getPath() + STORE_FILE_SUFFIX);
+        store = readStoreFile(storeFile, osmFile);
+
+        if (store == null) {
+            store = new OSMDataStore(parseXML(osmFile), osmFile.length(), osmFile.lastModified());
+
+            try {
+                store.writeStoreFile(storeFile);
+            } catch (IOException e) {
+                //the store is only an optimization, the next run will parse the XML file again
+                storeFile.delete();
+            }
+        }
+
+        loadedStores.put(storeKey, store);
+
+        return store;
+    }
+
+    /***
+     * Sends the stored elements to the handler as if the original XML file was parsed
+     */
+    public void replay(ContentHandler handler) throws SAXException {
+        handler.startDocument();
+        handler.startElement("", "osm", "osm", new AttributesImpl());
+
+        for (StoredElement element : elements) {
+            replayElement(element, handler);
+        }
+
+        handler.endElement("", "osm", "osm");
+        handler.endDocument();
+    }
+
+    public List<StoredElement> getElements() {
+        return Collections.unmodifiableList(elements);
+    }
+
+    /***
+     * @param type node, way or relation
+     * @return the element with the given id, or null if it's not in the store
+     */
+    public synchronized StoredElement getElement(String type, String id) {
+        if (idIndex == null) {
+            idIndex = new HashMap<>();
+
+            for (StoredElement element : elements) {
+                if (element.getAttribute("id") != null) {
+                    idIndex.put(element.getName() + "/" + element.getAttribute("id"), element);
+                }
+            }
+        }
+
+        return idIndex.get(type + "/" + id);
+    }
+
+    /***
+     * The tag keys are indexed without case and without the disused: prefix, like OSMParser reads them,
+     * so the callers need to check the tags of the returned elements if they care about the difference
+     * @param key one of the indexed tag keys: ref, gtfs_id or network
+     * @return the elements with that tag value, in the order of the file
+     */
+    public synchronized List<StoredElement> findByTag(String key, String value) {
+        if (!INDEXED_TAG_KEYS.contains(key)) {
+            throw new IllegalArgumentException("The tag key " + key + " is not indexed, the indexed keys are " + INDEXED_TAG_KEYS);
+        }
+
+        if (tagIndex == null) {
+            tagIndex = new HashMap<>();
+
+            for (StoredElement element : elements) {
+                for (StoredElement child : element.children) {
+                    if (!child.name.equals("tag") || child.getAttribute("k") == null) {
+                        continue;
+                    }
+
+                    String indexedKey = child.getAttribute("k").toLowerCase(Locale.ROOT).replace("disused:", "");
+                    List<StoredElement> tagElements = INDEXED_TAG_KEYS.contains(indexedKey)
+                            ? tagIndex.computeIfAbsent(indexedKey + "=" + child.getAttribute("v"), k -> new ArrayList<>()) : null;
+
+                    //an element with both the tag and its disused: version is indexed once
+                    if (tagElements != null && (tagElements.isEmpty() || tagElements.get(tagElements.size() - 1) != element)) {
+                        tagElements.add(element);
+                    }
+                }
+            }
+        }
+
+        return tagIndex.getOrDefault(key + "=" + value, List.of());
+    }
+
+    /***
+     * @return the nodes inside the bounding box, in the order of the file
+     */
+    public synchronized List<StoredElement> findNodesInBox(BoundingBox boundingBox) {
+        if (spatialIndex == null) {
+            spatialIndex = new HashMap<>();
+            spatialIndexOrder = new IdentityHashMap<>();
+
+            for (StoredElement element : elements) {
+                if (element.getName().equals("node") && element.getAttribute("lat") != null) {
+                    spatialIndex.computeIfAbsent(getCellKey(element.getLat(), element.getLon()), k -> new ArrayList<>()).add(element);
+                    spatialIndexOrder.put(element, spatialIndexOrder.size());
+                }
+            }
+        }
+
+        List<StoredElement> result = new ArrayList<>();
+
+        for (long row = getCellCoordinate(boundingBox.getMinLat()); row <= getCellCoordinate(boundingBox.getMaxLat()); row++) {
+            for (long column = getCellCoordinate(boundingBox.getMinLon()); column <= getCellCoordinate(boundingBox.getMaxLon()); column++) {
+                for (StoredElement node : spatialIndex.getOrDefault((row << 32) | (column & 0xffffffffL), List.of())) {
+                    if (node.getLat() >= boundingBox.getMinLat() && node.getLat() <= boundingBox.getMaxLat()
+                            && node.getLon() >= boundingBox.getMinLon() && node.getLon() <= boundingBox.getMaxLon()) {
+                        result.add(node);
+                    }
+                }
+            }
+        }
+
+        //the cells are visited by position, so the nodes are sorted back in the order of the file
+        result.sort(Comparator.comparingInt(spatialIndexOrder::get));
+
+        return result;
+    }
+
+    private boolean isValidFor(File osmFile) {
+        return sourceLength == osmFile.length() && sourceLastModified == osmFile.lastModified();
+    }
+
+    private static long getCellKey(double lat, double lon) {
+        return (getCellCoordinate(lat) << 32) | (getCellCoordinate(lon) & 0xffffffffL);
+    }
+
+    private static long getCellCoordinate(double degrees) {
+        return (long) Math.floor(degrees / SPATIAL_CELL_DEGREES);
+    }
+
+    private static void replayElement(StoredElement element, ContentHandler handler) throws SAXException {
+        AttributesImpl attributes = new AttributesImpl();
+
+        for (int i = 0; i < element.attributes.length; i += 2) {
+            attributes.addAttribute("", element.attributes[i], element.attributes[i], "CDATA", element.attributes[i + 1]);
+        }
+
+        handler.startElement("", element.name, element.name, attributes);
+
+        for (StoredElement child : element.children) {
+            replayElement(child, handler);
+        }
+
+        handler.endElement("", element.name, element.name);
+    }
+
+    private static List<StoredElement> parseXML(File osmFile) throws IOException, SAXException {
+        try (InputStream inputStream = new FileInputStream(osmFile)) {
+            return parseElements(inputStream);
+        }
+    }
+
+    /***
+     * Reads the children of the root element of an OSM XML stream (like the nodes of an osm file or the actions of an osmChange file)
+     */
+    static List<StoredElement> parseElements(InputStream inputStream) throws IOException, SAXException {
+        ElementsRecorder recorder = new ElementsRecorder();
+
+        XMLReader xr;
+
+        try {
+            SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
+            //the recorder uses the local names of the elements and attributes
+            saxParserFactory.setNamespaceAware(true);
+            xr = saxParserFactory.newSAXParser().getXMLReader();
+        } catch (ParserConfigurationException e) {
+            throw new SAXException(e);
+        }
+
+        xr.setContentHandler(recorder);
+        xr.setErrorHandler(recorder);
+        xr.parse(new InputSource(new BufferedInputStream(inputStream, 64 * 1024)));
+
+        return recorder.rootChildren;
+    }
+
+    private static OSMDataStore readStoreFile(File storeFile, File osmFile) {
+        if (!storeFile.exists()) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(storeFile), 64 * 1024))) {
+            if (in.readInt() != STORE_FORMAT_VERSION) {
+                return null;
+            }
+
+            long sourceLength = in.readLong();
+            long sourceLastModified = in.readLong();
+
+            if (sourceLength != osmFile.length() || sourceLastModified != osmFile.lastModified()) {
+                return null;
+            }
+
+            int elementsCount = in.readInt();
+            List<StoredElement> elements = new ArrayList<>(elementsCount);
+
+            for (int i = 0; i < elementsCount; i++) {
+                elements.add(readElement(in));
+            }
+
+            return new OSMDataStore(elements, sourceLength, sourceLastModified);
+        } catch (IOException e) {
+            //a broken or truncated store is created again from the XML file
+            return null;
+        }
+    }
+
+    private void writeStoreFile(File storeFile) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(storeFile), 64 * 1024))) {
+            out.writeInt(STORE_FORMAT_VERSION);
+            out.writeLong(sourceLength);
+            out.writeLong(sourceLastModified);
+            out.writeInt(elements.size());
+
+            for (StoredElement element : elements) {
+                writeElement(element, out);
+            }
+        }
+    }
+
+    private static StoredElement readElement(DataInputStream in) throws IOException {
+        String name = in.readUTF();
+
+        String[] attributes = new String[in.readUnsignedShort() * 2];
+        for (int i = 0; i < attributes.length; i++) {
+            attributes[i] = in.readUTF();
+        }
+
+        int childrenCount = in.readInt();
+        List<StoredElement> children = new ArrayList<>(childrenCount);
+        for (int i = 0; i < childrenCount; i++) {
+            children.add(readElement(in));
+        }
+
+        return new StoredElement(name, attributes, children);
+    }
+
+    private static void writeElement(StoredElement element, DataOutputStream out) throws IOException {
+        out.writeUTF(element.name);
+
+        out.writeShort(element.attributes.length / 2);
+        for (String attribute : element.attributes) {
+            out.writeUTF(attribute);
+        }
+
+        out.writeInt(element.children.size());
+        for (StoredElement child : element.children) {
+            writeElement(child, out);
+        }
+    }
+
+    /***
+     * An OSM element (node, way, relation) or one of its children (tag, nd, member)
+     */
+    public static class StoredElement {
+        private final String name;
+        //attribute names and values alternated, like the XML order
+        private final String[] attributes;
+        private final List<StoredElement> children;
+
+        StoredElement(String name, String[] attributes, List<StoredElement> children) {
+            this.name = name;
+            this.attributes = attributes;
+            this.children = children;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        String[] getAttributes() {
+            return attributes;
+        }
+
+        public String getAttribute(String attributeName) {
+            for (int i = 0; i < attributes.length; i += 2) {
+                if (attributes[i].equals(attributeName)) {
+                    return attributes[i + 1];
+                }
+            }
+
+            return null;
+        }
+
+        public String getTag(String key) {
+            for (StoredElement child : children) {
+                if (child.name.equals("tag") && key.equals(child.getAttribute("k"))) {
+                    return child.getAttribute("v");
+                }
+            }
+
+            return null;
+        }
+
+        public List<StoredElement> getChildren() {
+            return Collections.unmodifiableList(children);
+        }
+
+        public double getLat() {
+            return Double.parseDouble(getAttribute("lat"));
+        }
+
+        public double getLon() {
+            return Double.parseDouble(getAttribute("lon"));
+        }
+
+        /***
+         * Creates a DOM copy of the element and its children, like the one of the original XML file
+         */
+        public Element toElement(Document document) {
+            Element element = document.createElement(name);
+
+            for (int i = 0; i < attributes.length; i += 2) {
+                element.setAttribute(attributes[i], attributes[i + 1]);
+            }
+
+            for (StoredElement child : children) {
+                element.appendChild(child.toElement(document));
+            }
+
+            return element;
+        }
+    }
+
+    //keeps the elements of the XML file in memory, the root element (osm or osmChange) is not stored
+    private static class ElementsRecorder extends DefaultHandler {
+        private final List<StoredElement> rootChildren = new ArrayList<>();
+        private final Deque<StoredElement> openElements = new ArrayDeque<>();
+        private boolean isRootRead = false;
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            if (!isRootRead) {
+                isRootRead = true;
+                return;
+            }
+
+            String[] attributesArray = new String[attributes.getLength() * 2];
+            for (int i = 0; i < attributes.getLength(); i++) {
+                attributesArray[i * 2] = attributes.getLocalName(i);
+                attributesArray[i * 2 + 1] = attributes.getValue(i);
+            }
+
+            StoredElement element = new StoredElement(localName, attributesArray, new ArrayList<>());
+
+            if (openElements.isEmpty()) {
+                rootChildren.add(element);
+            } else {
+                openElements.peek().children.add(element);
+            }
+
+            openElements.push(element);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            if (!openElements.isEmpty()) {
+                openElements.pop();
+            }
+        }
+    }
+}
@@ -22,47 +22,57 @@ import it.osm.gtfs.models.Relation;
 import it.osm.gtfs.models.Relation.OSMNode;
 import it.osm.gtfs.models.Relation.OSMWay;
 import it.osm.gtfs.utils.GTFSImportSettings;
+import it.osm.gtfs.utils.ImportLogger;
 import it.osm.gtfs.utils.SharedCliOptions;
 import org.apache.commons.lang3.StringUtils;
 import org.fusesource.jansi.Ansi;
 import org.jxmapviewer.viewer.GeoPosition;
+import it.osm.gtfs.input.OSMDataStore.StoredElement;
 import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import org.w3c.dom.Element;
 import org.xml.sax.Attributes;
-import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
-import org.xml.sax.XMLReader;
 import org.xml.sax.helpers.DefaultHandler;
-import org.xml.sax.helpers.XMLReaderFactory;
 
-import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 
 import static org.fusesource.jansi.Ansi.ansi;
 
 public class OSMParser {
-
-    public static List<OSMStop> readOSMStops(String osmStopsFileName, boolean readStopsOfAnyOperator) throws ParserConfigurationException, SAXException, IOException {
-        List<OSMStop> osmStopsListOutput = new ArrayList<>();
+    private static final ImportLogger.Category SKIPPED_SUBWAY_STOPS = ImportLogger.category(ImportLogger.Level.INFO, "OSM subway/station stops skipped as requested");
+    private static final ImportLogger.Category SKIPPED_OPERATOR_STOPS = ImportLogger.category(ImportLogger.Level.INFO, "OSM stops skipped for operator mismatch");
+    private static final ImportLogger.Category IGNORED_GENERAL_STOP_POSITIONS = ImportLogger.category(ImportLogger.Level.INFO, "OSM general stop positions ignored");
+    private static final ImportLogger.Category SKIPPED_NOT_ROUTE_RELATIONS = ImportLogger.category(ImportLogger.Level.INFO, "OSM relations skipped as they are not routes");
+    private static final ImportLogger.Category SKIPPED_OPERATOR_RELATIONS = ImportLogger.category(ImportLogger.Level.INFO, "OSM relations skipped for operator mismatch");
+    private static final ImportLogger.Category UNSUPPORTED_MEMBER_TYPES = ImportLogger.category(ImportLogger.Level.WARN, "OSM relation members of an unsupported type");
+    private static final ImportLogger.Category UNSUPPORTED_MEMBER_ROLES = ImportLogger.category(ImportLogger.Level.WARN, "OSM relation member nodes with an unsupported role");
+    private static final ImportLogger.Category MISSING_MEMBER_STOPS = ImportLogger.category(ImportLogger.Level.WARN, "OSM relation member nodes not found among the stops");
+    private static final ImportLogger.Category FAILED_RELATIONS = ImportLogger.category(ImportLogger.Level.ERROR, "OSM relations not parsed because of invalid member nodes");
 
 
+    public static List<OSMStop> readOSMStops(String osmStopsFileName, boolean readStopsOfAnyOperator) throws ParserConfigurationException, SAXException, IOException {
+        //the stops are read from the binary store of the file, which is much faster than parsing the XML again,
+        //and the returned list can look up the stops with the indexes of the store
         File osmStopsFile = new File(osmStopsFileName);
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        DocumentBuilder db = dbf.newDocumentBuilder();
-        Document doc = db.parse(osmStopsFile);
-        doc.getDocumentElement().normalize();
+        OSMDataStore osmDataStore = OSMDataStore.open(osmStopsFile);
+        StoredOSMStopsList osmStopsListOutput = new StoredOSMStopsList(osmDataStore);
 
-        NodeList nodeList = doc.getElementsByTagName("node");
+        //the output generators edit and copy the XML nodes of the stops, so every stop gets a DOM copy of its node
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        Element osmElement = doc.createElement("osm");
+        doc.appendChild(osmElement);
 
-        for (int s = 0; s < nodeList.getLength(); s++) {
-            Node fstNode = nodeList.item(s);
-            OSMStop osmStop = new OSMStop(null, null, new GeoPosition(Double.parseDouble(fstNode.getAttributes().getNamedItem("lat").getNodeValue()), Double.parseDouble(fstNode.getAttributes().getNamedItem("lon").getNodeValue())), null, null, null, null);
+        for (StoredElement storedNode : osmDataStore.getElements()) {
+            if (!storedNode.getName().equals("node")) {
+                continue;
+            }
+
+            Element fstNode = storedNode.toElement(doc);
+            OSMStop osmStop = new OSMStop(null, null, new GeoPosition(storedNode.getLat(), storedNode.getLon()), null, null, null, null);
             osmStop.originalXMLNode = fstNode;
 
             //temp variables for tags
@@ -75,14 +85,10 @@ public class OSMParser {
                     station_tag = "",
                     subway_tag = "";
 
-            NodeList att = fstNode.getChildNodes();
-
-            for (int t = 0; t < att.getLength(); t++) {
-                Node attNode = att.item(t);
-
-                if (attNode.getAttributes() != null) {
-                    String key = attNode.getAttributes().getNamedItem("k").getNodeValue();
-                    String value = attNode.getAttributes().getNamedItem("v").getNodeValue();
+            for (StoredElement attNode : storedNode.getChildren()) {
+                if (attNode.getName().equals("tag")) {
+                    String key = attNode.getAttribute("k");
+                    String value = attNode.getAttribute("v");
 
                     if (StringUtils.containsIgnoreCase(key, "disused")) {
                         osmStop.setDisused(true);
@@ -194,7 +200,7 @@ public class OSMParser {
             //skip subway stops if requested
             if (SharedCliOptions.onlyBusStops && (osmStop.getStopType().equals(OSMStopType.PHYSICAL_SUBWAY_STOP) || osmStop.getStopType().equals(OSMStopType.PHYSICAL_TRAIN_STATION))) {
 
-                System.out.println(ansi().render("@|yellow Skipping OSM subway/station stop (nodeID= " + osmStop.getOSMId() + ", ref= " + osmStop.getCode() + ", gtfs_id=" + osmStop.getGtfsId() + ") as requested. |@"));
+                ImportLogger.log(SKIPPED_SUBWAY_STOPS, () -> "@|yellow Skipping OSM subway/station stop (nodeID= " + osmStop.getOSMId() + ", ref= " + osmStop.getCode() + ", gtfs_id=" + osmStop.getGtfsId() + ") as requested. |@");
                 continue;
             }
 
@@ -203,7 +209,7 @@ public class OSMParser {
             if (!readStopsOfAnyOperator && osmStop.getOperator() != null && !StringUtils.containsIgnoreCase(osmStop.getOperator(), GTFSImportSettings.getInstance().getOperator())) {
                 //System.out.println(osmStop.getOperator());
 
-                System.out.println(ansi().fg(Ansi.Color.YELLOW).a("Skipping OSM Stop node ID " + osmStop.getOSMId() + " (ref=" + osmStop.getCode() + ", gtfs_id=" + osmStop.getGtfsId() + ")" + " as its operator tag value (" + osmStop.getOperator() + ") is different than the one specified in the properties file.").reset());
+                ImportLogger.log(SKIPPED_OPERATOR_STOPS, () -> "@|yellow Skipping OSM Stop node ID " + osmStop.getOSMId() + " (ref=" + osmStop.getCode() + ", gtfs_id=" + osmStop.getGtfsId() + ")" + " as its operator tag value (" + osmStop.getOperator() + ") is different than the one specified in the properties file.|@");
                 continue;
             }
 
@@ -213,45 +219,34 @@ public class OSMParser {
 
 
             if (osmStop.getStopType().equals(OSMStopType.GENERAL_STOP_POSITION)) {
-                System.out.println(ansi().render("@|yellow Ignoring general_stop_position... (node ID: " + osmStop.getOSMId() + ") |@"));
+                ImportLogger.log(IGNORED_GENERAL_STOP_POSITIONS, () -> "@|yellow Ignoring general_stop_position... (node ID: " + osmStop.getOSMId() + ") |@");
                 continue; //ignore unsupported stop positions (like ferries)
             }
 
 
-            osmStopsListOutput.add(osmStop);
+            osmElement.appendChild(fstNode);
+            osmStopsListOutput.add(storedNode, osmStop);
         }
 
+        ImportLogger.summarize(SKIPPED_SUBWAY_STOPS, SKIPPED_OPERATOR_STOPS, IGNORED_GENERAL_STOP_POSITIONS);
+
         return osmStopsListOutput;
     }
 
     public static ReadOSMRelationsResult readOSMRelations(File file, Map<String, OSMStop> stopsWithOSMIndex, boolean readRelationsOfAnyOperator) throws SAXException, IOException {
-        NodeParser nodeParser;
-        {
-            XMLReader xr = XMLReaderFactory.createXMLReader();
-            nodeParser = new NodeParser();
-            xr.setContentHandler(nodeParser);
-            xr.setErrorHandler(nodeParser);
-            xr.parse(new InputSource(new FileReader(file)));
-        }
+        //the XML file is parsed only once into the store, then the three passes replay the stored elements
+        OSMDataStore osmDataStore = OSMDataStore.open(file);
 
-        WayParser wayParser;
-        {
-            XMLReader xr = XMLReaderFactory.createXMLReader();
-            wayParser = new WayParser(nodeParser.result);
-            xr.setContentHandler(wayParser);
-            xr.setErrorHandler(wayParser);
-            xr.parse(new InputSource(new FileReader(file)));
-        }
+        NodeParser nodeParser = new NodeParser();
+        osmDataStore.replay(nodeParser);
 
-        RelationParser relationParser;
-        {
-            XMLReader xr = XMLReaderFactory.createXMLReader();
-            relationParser = new RelationParser(stopsWithOSMIndex, wayParser.result, readRelationsOfAnyOperator);
-            xr.setContentHandler(relationParser);
-            xr.setErrorHandler(relationParser);
-            xr.parse(new InputSource(new FileReader(file)));
-        }
+        WayParser wayParser = new WayParser(nodeParser.result);
+        osmDataStore.replay(wayParser);
+
+        RelationParser relationParser = new RelationParser(stopsWithOSMIndex, wayParser.result, readRelationsOfAnyOperator);
+        osmDataStore.replay(relationParser);
 
+        ImportLogger.summarize(SKIPPED_NOT_ROUTE_RELATIONS, SKIPPED_OPERATOR_RELATIONS, UNSUPPORTED_MEMBER_TYPES, UNSUPPORTED_MEMBER_ROLES, MISSING_MEMBER_STOPS, FAILED_RELATIONS);
 
         if (relationParser.missingNodes.size() > 0 || relationParser.failedRelations.size() > 0) {
             List<String> failedRelsIds = new ArrayList<>();
@@ -378,7 +373,8 @@ public class OSMParser {
                     currentRelation.getWayMembers().add(member);
 
                 } else { //TODO: supportare i membri "relation", ovvero le master_relation solitamente
-                    System.out.println(ansi().render("@|red Warning: Relation " + currentRelation.getId() + " has a member (id: " + memberRef + ") of an unsupported type \"" + memberType + "\"" + "|@"));
+                    String relationId = currentRelation.getId();
+                    ImportLogger.log(UNSUPPORTED_MEMBER_TYPES, () -> "@|red Warning: Relation " + relationId + " has a member (id: " + memberRef + ") of an unsupported type \"" + memberType + "\"" + "|@");
                 }
 
             } else if (currentRelation != null && localName.equals("tag")) {
@@ -415,7 +411,8 @@ public class OSMParser {
             if (localName.equals("relation")) {
 
                 if (!type_tag.equalsIgnoreCase("route")) {
-                    System.out.println(ansi().fg(Ansi.Color.YELLOW).a("Skipping OSM relation " + currentRelation.getId() + " as its type tag (" + type_tag + ") is not a route.").reset());
+                    String relationId = currentRelation.getId(), typeTag = type_tag;
+                    ImportLogger.log(SKIPPED_NOT_ROUTE_RELATIONS, () -> "@|yellow Skipping OSM relation " + relationId + " as its type tag (" + typeTag + ") is not a route.|@");
 
                     return;
                 }
@@ -424,7 +421,8 @@ public class OSMParser {
                 //if the current osm relation has a different operator tag value than the one specified in the properties we skip it - but we keep the stops with a null operator as they could be of our operator
                 if (!readRelationsOfAnyOperator && currentRelation.getOperator() != null && !StringUtils.containsIgnoreCase(currentRelation.getOperator(), GTFSImportSettings.getInstance().getOperator())) {
 
-                    System.out.println(ansi().fg(Ansi.Color.YELLOW).a("Skipping OSM relation " + currentRelation.getId() + " as its operator tag value (" + currentRelation.getOperator() + ") is different than the one specified in the properties file.").reset());
+                    Relation relation = currentRelation;
+                    ImportLogger.log(SKIPPED_OPERATOR_RELATIONS, () -> "@|yellow Skipping OSM relation " + relation.getId() + " as its operator tag value (" + relation.getOperator() + ") is different than the one specified in the properties file.|@");
 
                     return;
                 }
@@ -442,14 +440,16 @@ public class OSMParser {
                         OSMStop osmStop = stopsWithOSMIndex.get(tempMemberRef);
 
                         if (osmStop == null) {
-                            System.out.println(ansi().render("@|yellow Warning: Node " + tempMemberRef + " not found in internal stops array/map. Probably this isn't a valid stop anymore but is still attached to the relation " + currentRelation.getId() + ". Better checking it out. |@"));
+                            String relationId = currentRelation.getId();
+                            ImportLogger.log(MISSING_MEMBER_STOPS, () -> "@|yellow Warning: Node " + tempMemberRef + " not found in internal stops array/map. Probably this isn't a valid stop anymore but is still attached to the relation " + relationId + ". Better checking it out. |@");
                             missingNodes.add(tempMemberRef);
                             failed = true;
                         }
                         currentRelation.pushPoint(seq++, osmStop);
 
                     } else {
-                        System.out.println(ansi().render("@|red Warning: Relation " + currentRelation.getId() + " has a member node with an unsupported role \"" + tempMemberRole + "\", node ref/Id = " + tempMemberRef + "|@"));
+                        String relationId = currentRelation.getId();
+                        ImportLogger.log(UNSUPPORTED_MEMBER_ROLES, () -> "@|red Warning: Relation " + relationId + " has a member node with an unsupported role \"" + tempMemberRole + "\", node ref/Id = " + tempMemberRef + "|@");
                     }
                 }
 
@@ -466,7 +466,8 @@ public class OSMParser {
                     validRelations.add(currentRelation);
                 } else {
                     failedRelations.add(currentRelation);
-                    System.out.println(ansi().render("@|red OSMParser: Relation " + currentRelation.getId() + " couldn't be parsed because of invalid member nodes. [" + currentRelation.getName() + "]" + "|@"));
+                    Relation relation = currentRelation;
+                    ImportLogger.log(FAILED_RELATIONS, () -> "@|red OSMParser: Relation " + relation.getId() + " couldn't be parsed because of invalid member nodes. [" + relation.getName() + "]" + "|@");
                 }
 
             }
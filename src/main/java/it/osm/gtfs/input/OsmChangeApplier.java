@@ -0,0 +1,360 @@
+/**
+ * Licensed under the GNU General Public License version 3
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.gnu.org/licenses/gpl-3.0.html
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package it.osm.gtfs.input;
+
+import it.osm.gtfs.input.OSMDataStore.StoredElement;
+import org.xml.sax.SAXException;
+
+import javax.xml.stream.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.function.BiPredicate;
+import java.util.zip.GZIPInputStream;
+
+import static org.fusesource.jansi.Ansi.ansi;
+
+/***
+ * This class applies osmChange files (.osc or .osc.gz, like the replication minutely/daily diffs) to a local OSM file,
+ * so that the file can be kept updated without downloading it again.
+ * The sequence number of the last applied change file is saved next to the OSM file, so that every change file is applied only once.
+ * After a full download the sequence number isn't known, so the state has the time of the downloaded data instead, and the change files
+ * with an older replication state (the .state.txt file next to them) are skipped.
+ */
+public class OsmChangeApplier {
+    private static final String STATE_FILE_SUFFIX = ".state";
+    private static final String SEQUENCE_NUMBER_KEY = "sequenceNumber";
+    private static final String DOWNLOAD_TIMESTAMP_KEY = "downloadTimestamp";
+    private static final List<String> ELEMENT_TYPES = List.of("node", "way", "relation");
+
+    private final BiPredicate<StoredElement, Boolean> isWantedElement;
+
+    /***
+     * @param isWantedElement tells if the new version of a created or modified element belongs to the local file, the second
+     *                        argument is true if the element is already in the local file. The diffs cover the whole world,
+     *                        so most of their elements must be ignored, and the local elements that aren't wanted anymore
+     *                        (like a node that isn't a stop anymore) are removed.
+     */
+    public OsmChangeApplier(BiPredicate<StoredElement, Boolean> isWantedElement) {
+        this.isWantedElement = isWantedElement;
+    }
+
+    /***
+     * Applies to the OSM file all the change files of the directory with a sequence number greater than the last applied one
+     * @param changesDirectory a directory with change files named by sequence number, both flat (like 4321.osc.gz) and
+     *                         with the replication layout (like 000/004/321.osc.gz)
+     * @return the number of applied change files
+     */
+    public int applyChangesDirectory(File osmFile, File changesDirectory) throws IOException, SAXException {
+        Properties state = readState(osmFile);
+        long lastAppliedSequence = Long.parseLong(state.getProperty(SEQUENCE_NUMBER_KEY, "-1"));
+
+        TreeMap<Long, File> changeFiles = new TreeMap<>();
+        findChangeFiles(changesDirectory, changesDirectory, changeFiles);
+
+        SortedMap<Long, File> newChangeFiles = new TreeMap<>(changeFiles.tailMap(lastAppliedSequence + 1));
+
+        //after a full download, the changes already included in the downloaded data are skipped
+        if (lastAppliedSequence < 0 && state.getProperty(DOWNLOAD_TIMESTAMP_KEY) != null) {
+            Instant downloadTimestamp = Instant.parse(state.getProperty(DOWNLOAD_TIMESTAMP_KEY));
+
+            while (!newChangeFiles.isEmpty()) {
+                Instant changeTimestamp = readReplicationTimestamp(newChangeFiles.get(newChangeFiles.firstKey()));
+
+                if (changeTimestamp == null || changeTimestamp.isAfter(downloadTimestamp)) {
+                    break;
+                }
+
+                lastAppliedSequence = newChangeFiles.firstKey();
+                newChangeFiles.remove(lastAppliedSequence);
+            }
+
+            if (newChangeFiles.isEmpty() && lastAppliedSequence >= 0) {
+                writeLastAppliedSequence(osmFile, lastAppliedSequence);
+            }
+        }
+
+        if (newChangeFiles.isEmpty()) {
+            System.out.println(ansi().render("@|green " + osmFile.getName() + " is already updated to the change sequence " + lastAppliedSequence + " |@"));
+            return 0;
+        }
+
+        applyChanges(osmFile, new ArrayList<>(newChangeFiles.values()));
+        writeLastAppliedSequence(osmFile, newChangeFiles.lastKey());
+
+        return newChangeFiles.size();
+    }
+
+    /***
+     * Applies the change files in the given order to the OSM file
+     */
+    public void applyChanges(File osmFile, List<File> changeFiles) throws IOException, SAXException {
+        //elements by type/id, like node/1234
+        Map<String, StoredElement> localElements = new HashMap<>();
+
+        for (StoredElement element : OSMDataStore.open(osmFile).getElements()) {
+            if (ELEMENT_TYPES.contains(element.getName())) {
+                localElements.put(getElementKey(element), element);
+            }
+        }
+
+        int created = 0, modified = 0, deleted = 0;
+
+        for (File changeFile : changeFiles) {
+            List<StoredElement> actions;
+
+            try (InputStream inputStream = openChangeFile(changeFile)) {
+                actions = OSMDataStore.parseElements(inputStream);
+            }
+
+            for (StoredElement action : actions) {
+                for (StoredElement element : action.getChildren()) {
+                    String elementKey = getElementKey(element);
+                    StoredElement localElement = localElements.get(elementKey);
+
+                    //an older version can come from a change file applied twice or out of order
+                    if (localElement != null && getVersion(localElement) >= getVersion(element)) {
+                        continue;
+                    }
+
+                    if (action.getName().equals("delete") || !isWantedElement.test(element, localElement != null)) {
+                        if (localElements.remove(elementKey) != null) {
+                            deleted++;
+                        }
+                    } else if (localElement != null) {
+                        localElements.put(elementKey, element);
+                        modified++;
+                    } else {
+                        localElements.put(elementKey, element);
+                        created++;
+                    }
+                }
+            }
+        }
+
+        writeOSMFile(localElements.values(), osmFile);
+
+        System.out.println(ansi().render("@|green Applied " + changeFiles.size() + " change files to " + osmFile.getName() + ": " + created + " created, " + modified + " modified, " + deleted + " deleted elements |@"));
+    }
+
+    public static long readLastAppliedSequence(File osmFile) throws IOException {
+        return Long.parseLong(readState(osmFile).getProperty(SEQUENCE_NUMBER_KEY, "-1"));
+    }
+
+    /***
+     * Saves the sequence number of the last change included in the OSM file
+     */
+    public static void writeLastAppliedSequence(File osmFile, long sequenceNumber) throws IOException {
+        Properties state = new Properties();
+        state.setProperty(SEQUENCE_NUMBER_KEY, String.valueOf(sequenceNumber));
+
+        writeState(osmFile, state);
+    }
+
+    /***
+     * Saves the state of an OSM file created from a full Overpass download, replacing the sequence number of the previous updates
+     * @param downloadedFiles the Overpass files the OSM file was made of, the state has the time of the oldest one (their osm_base)
+     */
+    public static void writeDownloadState(File osmFile, Collection<File> downloadedFiles) throws IOException {
+        Instant downloadTimestamp = null;
+
+        for (File downloadedFile : downloadedFiles) {
+            Instant osmBaseTimestamp = readOsmBaseTimestamp(downloadedFile);
+
+            if (osmBaseTimestamp == null) {
+                //without the time of the data all the change files are applied on the next update, their versions are checked anyway
+                new File(osmFile.getPath() + STATE_FILE_SUFFIX).delete();
+                return;
+            }
+
+            if (downloadTimestamp == null || osmBaseTimestamp.isBefore(downloadTimestamp)) {
+                downloadTimestamp = osmBaseTimestamp;
+            }
+        }
+
+        if (downloadTimestamp != null) {
+            Properties state = new Properties();
+            state.setProperty(DOWNLOAD_TIMESTAMP_KEY, downloadTimestamp.toString());
+
+            writeState(osmFile, state);
+        }
+    }
+
+    private static Properties readState(File osmFile) throws IOException {
+        File stateFile = new File(osmFile.getPath() + STATE_FILE_SUFFIX);
+        Properties state = new Properties();
+
+        if (stateFile.exists()) {
+            try (InputStream in = new FileInputStream(stateFile)) {
+                state.load(in);
+            }
+        }
+
+        return state;
+    }
+
+    private static void writeState(File osmFile, Properties state) throws IOException {
+        try (OutputStream out = new FileOutputStream(osmFile.getPath() + STATE_FILE_SUFFIX)) {
+            state.store(out, null);
+        }
+    }
+
+    //the osm_base attribute of the meta element of an Overpass file, which is the time of the last database update included in the data
+    private static Instant readOsmBaseTimestamp(File overpassFile) throws IOException {
+        try (InputStream inputStream = openOsmFile(overpassFile)) {
+            XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(inputStream);
+
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                        if (reader.getLocalName().equals("meta") && reader.getAttributeValue(null, "osm_base") != null) {
+                            return Instant.parse(reader.getAttributeValue(null, "osm_base"));
+                        }
+
+                        //the meta element comes before the data
+                        if (ELEMENT_TYPES.contains(reader.getLocalName())) {
+                            return null;
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+
+            return null;
+        } catch (XMLStreamException | DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    //the timestamp of the replication state file next to the change file, like 000/004/321.state.txt for 000/004/321.osc.gz
+    private static Instant readReplicationTimestamp(File changeFile) throws IOException {
+        String changeFileName = changeFile.getName();
+        File replicationStateFile = new File(changeFile.getParentFile(), changeFileName.substring(0, changeFileName.indexOf(".osc")) + ".state.txt");
+
+        if (!replicationStateFile.exists()) {
+            return null;
+        }
+
+        Properties replicationState = new Properties();
+        try (InputStream in = new FileInputStream(replicationStateFile)) {
+            replicationState.load(in);
+        }
+
+        try {
+            return (replicationState.getProperty("timestamp") == null) ? null : Instant.parse(replicationState.getProperty("timestamp"));
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    private static void findChangeFiles(File baseDirectory, File directory, Map<Long, File> changeFiles) {
+        File[] files = directory.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (file.isDirectory()) {
+                findChangeFiles(baseDirectory, file, changeFiles);
+            } else if (file.getName().endsWith(".osc") || file.getName().endsWith(".osc.gz")) {
+                //the sequence number is made of all the digits of the path, so 000/004/321.osc.gz is 4321
+                String relativePath = baseDirectory.toPath().relativize(file.toPath()).toString();
+                String sequenceDigits = relativePath.substring(0, relativePath.indexOf(".osc")).replaceAll("\\D", "");
+
+                if (!sequenceDigits.isEmpty()) {
+                    changeFiles.put(Long.parseLong(sequenceDigits), file);
+                }
+            }
+        }
+    }
+
+    private static InputStream openChangeFile(File changeFile) throws IOException {
+        InputStream inputStream = new FileInputStream(changeFile);
+
+        return changeFile.getName().endsWith(".gz") ? new GZIPInputStream(inputStream) : inputStream;
+    }
+
+    //the Overpass files can be compressed or not depending on the server, whatever their name is
+    private static InputStream openOsmFile(File file) throws IOException {
+        BufferedInputStream inputStream = new BufferedInputStream(new FileInputStream(file));
+        inputStream.mark(2);
+
+        int firstByte = inputStream.read();
+        int secondByte = inputStream.read();
+        inputStream.reset();
+
+        return (firstByte == 0x1f && secondByte == 0x8b) ? new GZIPInputStream(inputStream) : inputStream;
+    }
+
+    private static String getElementKey(StoredElement element) {
+        return element.getName() + "/" + element.getAttribute("id");
+    }
+
+    private static int getVersion(StoredElement element) {
+        String version = element.getAttribute("version");
+
+        return (version == null) ? 0 : Integer.parseInt(version);
+    }
+
+    //the elements are written sorted by type and id, as osmosis needs sorted files to merge them
+    private static void writeOSMFile(Collection<StoredElement> elements, File osmFile) throws IOException {
+        List<StoredElement> sortedElements = new ArrayList<>(elements);
+        sortedElements.sort(Comparator.comparingInt((StoredElement element) -> ELEMENT_TYPES.indexOf(element.getName()))
+                .thenComparingLong(element -> Long.parseLong(element.getAttribute("id"))));
+
+        File tempFile = new File(osmFile.getPath() + ".tmp");
+
+        try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024)) {
+            XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(outputStream, StandardCharsets.UTF_8.name());
+
+            writer.writeStartDocument(StandardCharsets.UTF_8.name(), "1.0");
+            writer.writeStartElement("osm");
+            writer.writeAttribute("version", "0.6");
+            writer.writeAttribute("generator", "GTFSOSMImport");
+
+            for (StoredElement element : sortedElements) {
+                writeElement(element, writer);
+            }
+
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Couldn't write the updated OSM file " + osmFile, e);
+        }
+
+        Files.move(tempFile.toPath(), osmFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void writeElement(StoredElement element, XMLStreamWriter writer) throws XMLStreamException {
+        writer.writeStartElement(element.getName());
+
+        String[] attributes = element.getAttributes();
+        for (int i = 0; i < attributes.length; i += 2) {
+            writer.writeAttribute(attributes[i], attributes[i + 1]);
+        }
+
+        for (StoredElement child : element.getChildren()) {
+            writeElement(child, writer);
+        }
+
+        writer.writeEndElement();
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Licensed under the GNU General Public License version 3
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.gnu.org/licenses/gpl-3.0.html
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package it.osm.gtfs.input;
+
+import it.osm.gtfs.input.OSMDataStore.StoredElement;
+import it.osm.gtfs.models.OSMStop;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/***
+ * The OSM stops read by OSMParser from an OSMDataStore, which can be looked up by OSM id and gtfs_id
+ * with the indexes of the store instead of building a map of all the stops
+ */
+public class StoredOSMStopsList extends ArrayList<OSMStop> {
+    private final OSMDataStore osmDataStore;
+    //the stop read from every node of the store, the skipped nodes are not here
+    private final Map<StoredElement, OSMStop> elementStopMap = new IdentityHashMap<>();
+
+    StoredOSMStopsList(OSMDataStore osmDataStore) {
+        this.osmDataStore = osmDataStore;
+    }
+
+    void add(StoredElement node, OSMStop osmStop) {
+        add(osmStop);
+        elementStopMap.put(node, osmStop);
+    }
+
+    /***
+     * @return the stop with the given OSM id, or null if it wasn't read
+     */
+    public OSMStop getByOSMId(String osmId) {
+        StoredElement node = osmDataStore.getElement("node", osmId);
+
+        return (node == null) ? null : elementStopMap.get(node);
+    }
+
+    /***
+     * @return the stop with the given gtfs_id, the last one in the file if there are more of them, or null if there are none
+     */
+    public OSMStop getByGtfsId(String gtfsId) {
+        if (gtfsId == null || gtfsId.isEmpty()) {
+            return null;
+        }
+
+        OSMStop result = null;
+
+        for (StoredElement node : osmDataStore.findByTag("gtfs_id", gtfsId)) {
+            OSMStop osmStop = elementStopMap.get(node);
+
+            //the index also has the disused:gtfs_id tags, the stop has the gtfs_id that OSMParser kept
+            if (osmStop != null && gtfsId.equals(osmStop.getGtfsId())) {
+                result = osmStop;
+            }
+        }
+
+        return result;
+    }
+}
@@ -16,7 +16,7 @@ package it.osm.gtfs.models;
 import it.osm.gtfs.output.IElementCreator;
 import org.w3c.dom.Element;
 
-import java.util.Collection;
+import java.util.*;
 
 public class BoundingBox {
     private Double minLat;
@@ -44,6 +44,134 @@ public class BoundingBox {
         maxLon += 0.01;
     }
 
+    public BoundingBox(double minLat, double minLon, double maxLat, double maxLon) {
+        this.minLat = minLat;
+        this.minLon = minLon;
+        this.maxLat = maxLat;
+        this.maxLon = maxLon;
+    }
+
+    public Double getMinLat() {
+        return minLat;
+    }
+
+    public Double getMinLon() {
+        return minLon;
+    }
+
+    public Double getMaxLat() {
+        return maxLat;
+    }
+
+    public Double getMaxLon() {
+        return maxLon;
+    }
+
+    /***
+     * Groups the stops into clusters and returns a bounding box for every cluster, so that the networks made of
+     * distant towns don't need to download all the empty area between them
+     * @param clusterDistanceDegrees stops closer than this distance end up in the same cluster, 0 means a single bounding box for all the stops
+     */
+    public static List<BoundingBox> getClusteredRegions(Collection<? extends Stop> stops, double clusterDistanceDegrees) {
+        if (clusterDistanceDegrees <= 0) {
+            return List.of(new BoundingBox(stops));
+        }
+
+        //every stop goes in a grid cell as big as the cluster distance, then the adjacent non-empty cells are joined together
+        Map<Long, List<Stop>> cellStopsMap = new LinkedHashMap<>();
+
+        for (Stop stop : stops) {
+            long row = (long) Math.floor(stop.getGeoPosition().getLatitude() / clusterDistanceDegrees);
+            long column = (long) Math.floor(stop.getGeoPosition().getLongitude() / clusterDistanceDegrees);
+
+            cellStopsMap.computeIfAbsent(getCellKey(row, column), k -> new ArrayList<>()).add(stop);
+        }
+
+        List<BoundingBox> regions = new ArrayList<>();
+        Set<Long> visitedCells = new HashSet<>();
+
+        for (Long startCell : cellStopsMap.keySet()) {
+            if (!visitedCells.add(startCell)) {
+                continue;
+            }
+
+            List<Stop> clusterStops = new ArrayList<>();
+            Deque<Long> cellsToVisit = new ArrayDeque<>();
+            cellsToVisit.add(startCell);
+
+            while (!cellsToVisit.isEmpty()) {
+                long cell = cellsToVisit.poll();
+                clusterStops.addAll(cellStopsMap.get(cell));
+
+                long row = cell >> 32;
+                long column = (int) cell;
+
+                for (long neighbourRow = row - 1; neighbourRow <= row + 1; neighbourRow++) {
+                    for (long neighbourColumn = column - 1; neighbourColumn <= column + 1; neighbourColumn++) {
+                        long neighbourCell = getCellKey(neighbourRow, neighbourColumn);
+
+                        if (cellStopsMap.containsKey(neighbourCell) && visitedCells.add(neighbourCell)) {
+                            cellsToVisit.add(neighbourCell);
+                        }
+                    }
+                }
+            }
+
+            regions.add(new BoundingBox(clusterStops));
+        }
+
+        return regions;
+    }
+
+    private static long getCellKey(long row, long column) {
+        return (row << 32) | (column & 0xffffffffL);
+    }
+
+    /***
+     * Splits the bounding box into a grid of tiles of the given size (the tiles on the borders can be smaller)
+     */
+    public List<BoundingBox> getTiles(double tileSizeDegrees) {
+        List<BoundingBox> tiles = new ArrayList<>();
+
+        //we snap the grid to multiples of the tile size so that the same tiles are generated again when the bbox changes slightly
+        double gridStartLat = Math.floor(minLat / tileSizeDegrees) * tileSizeDegrees;
+        double gridStartLon = Math.floor(minLon / tileSizeDegrees) * tileSizeDegrees;
+
+        for (int row = 0; gridStartLat + row * tileSizeDegrees < maxLat; row++) {
+            double lat = gridStartLat + row * tileSizeDegrees;
+
+            for (int column = 0; gridStartLon + column * tileSizeDegrees < maxLon; column++) {
+                double lon = gridStartLon + column * tileSizeDegrees;
+
+                tiles.add(new BoundingBox(round(lat), round(lon), round(lat + tileSizeDegrees), round(lon + tileSizeDegrees)));
+            }
+        }
+
+        return tiles;
+    }
+
+    /***
+     * Splits the bounding box into its four quadrants
+     */
+    public List<BoundingBox> getQuadrants() {
+        double midLat = round((minLat + maxLat) / 2);
+        double midLon = round((minLon + maxLon) / 2);
+
+        return List.of(new BoundingBox(minLat, minLon, midLat, midLon),
+                new BoundingBox(minLat, midLon, midLat, maxLon),
+                new BoundingBox(midLat, minLon, maxLat, midLon),
+                new BoundingBox(midLat, midLon, maxLat, maxLon));
+    }
+
+    public double getWidthDegrees() {
+        return maxLon - minLon;
+    }
+
+    //rounding to 7 decimals (the OSM coordinates precision) avoids floating point noise in the tiles coordinates
+    private static double round(double coordinate) {
+        return Math.round(coordinate * 1e7) / 1e7;
+    }
+
     @Override
     public String toString() {
         return "[minLat=" + minLat + ", minLon=" + minLon
@@ -55,6 +183,11 @@ public class BoundingBox {
         return minLon + "," + minLat + "," + maxLon + "," + maxLat; //questo è per la nuova api Overpass QL
     }
 
+    //bounding box filter to append to a single Overpass statement, like node[highway=bus_stop](filter);
+    public String getOverpassFilter() {
+        return "(" + minLat + "," + minLon + "," + maxLat + "," + maxLon + ")";
+    }
+
     public String getXMLTag() {
         return "<bounds minlat='" + minLat + "' minlon='" + minLon + "' maxlat='" + maxLat + "' maxlon='" + maxLon + "' origin='GTFSOSMImport' />";
     }
@@ -18,6 +18,42 @@ public class GTFSStop extends Stop {
         super(gtfsId, code, geoPosition, name, operator, stopType, wheelchairAccessibility);
     }
 
+    private String parentStation; //the gtfs id of the station the stop belongs to, if any
+
+    //the name fixed by the plugin depends on the name and on the stop type, so it's computed again when one of them changes
+    private String fixedName;
+
+    /***
+     * @return the name of the stop fixed by the plugin, which is the one used in OSM
+     */
+    public String getFixedName() {
+        if (fixedName == null && getName() != null) {
+            fixedName = GTFSImportSettings.getInstance().getPlugin().fixBusStopName(this);
+        }
+
+        return fixedName;
+    }
+
+    public String getParentStation() {
+        return parentStation;
+    }
+
+    public void setParentStation(String parentStation) {
+        this.parentStation = parentStation;
+    }
+
+    @Override
+    public void setName(String name) {
+        super.setName(name);
+        this.fixedName = null;
+    }
+
+    @Override
+    public void setStopType(OSMStopType stopType) {
+        super.setStopType(stopType);
+        this.fixedName = null;
+    }
+
     @Override
     public String toString() {
         return "GTFSStop [gtfsId=" + getGtfsId() + ", code=" + getCode() + ", lat=" + getGeoPosition().getLatitude()
@@ -40,7 +76,7 @@ public class GTFSStop extends Stop {
         node.setAttribute("lat", String.valueOf(getGeoPosition().getLatitude()));
         node.setAttribute("lon", String.valueOf(getGeoPosition().getLongitude()));
 
-        node.appendChild(OSMXMLUtils.createTagElement(document, "name", GTFSImportSettings.getInstance().getPlugin().fixBusStopName(this)));
+        node.appendChild(OSMXMLUtils.createTagElement(document, "name", getFixedName()));
         node.appendChild(OSMXMLUtils.createTagElement(document, "ref", getCode()));
         node.appendChild(OSMXMLUtils.createTagElement(document, "gtfs_id", getGtfsId()));
         node.appendChild(OSMXMLUtils.createTagElement(document, "operator", GTFSImportSettings.getInstance().getOperator()));
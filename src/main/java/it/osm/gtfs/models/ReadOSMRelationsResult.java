@@ -1,16 +1,23 @@
 package it.osm.gtfs.models;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public class ReadOSMRelationsResult {
     private final List<Relation> finalValidRelations;
     private final List<Relation> failedRelations;
     private final List<String> missingNodes;
+    private final RelationsReverseIndex relationsReverseIndex;
 
     public ReadOSMRelationsResult(List<Relation> finalValidRelations, List<Relation> failedRelations, List<String> missingNodes) {
         this.finalValidRelations = finalValidRelations;
         this.failedRelations = failedRelations;
         this.missingNodes = missingNodes;
+
+        //the failed relations are indexed too, as their valid members are still affected by the changes
+        List<Relation> allRelations = new ArrayList<>(finalValidRelations);
+        allRelations.addAll(failedRelations);
+        this.relationsReverseIndex = new RelationsReverseIndex(allRelations);
     }
 
 
@@ -25,4 +32,11 @@ public class ReadOSMRelationsResult {
     public List<String> getMissingNodes() {
         return missingNodes;
     }
-}
\ No newline at end of file
+
+    /***
+     * @return the index of the relations by member stop and way, of both the valid and the failed relations
+     */
+    public RelationsReverseIndex getRelationsReverseIndex() {
+        return relationsReverseIndex;
+    }
+}
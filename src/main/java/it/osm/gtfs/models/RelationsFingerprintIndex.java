@@ -0,0 +1,95 @@
+/**
+ * Licensed under the GNU General Public License version 3
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.gnu.org/licenses/gpl-3.0.html
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package it.osm.gtfs.models;
+
+import java.util.*;
+
+/***
+ * The relations indexed by a fingerprint of their ordered stops (the sequence numbers with the gtfs_id of the stops),
+ * so that the relations with the same stops of a trip are found with a lookup instead of comparing the trip with all the relations.
+ * The relations are also indexed without their last stops, for the plugins that accept a trip with the last stops missing.
+ */
+public class RelationsFingerprintIndex {
+    private final Map<String, List<Relation>> fingerprintRelationsMap = new HashMap<>();
+    //by number of missing last stops, from 1 to maxMissingLastStops
+    private final List<Map<String, List<Relation>>> missingLastStopsFingerprintRelationsMaps = new ArrayList<>();
+
+    /***
+     * @param maxMissingLastStops the maximum number of last stops of a relation that can be missing in the trip
+     */
+    public RelationsFingerprintIndex(Collection<Relation> relations, int maxMissingLastStops) {
+        for (int i = 0; i < maxMissingLastStops; i++) {
+            missingLastStopsFingerprintRelationsMaps.add(new HashMap<>());
+        }
+
+        for (Relation relation : relations) {
+            List<Map.Entry<Long, OSMStop>> stops = new ArrayList<>(relation.getStops().entrySet());
+
+            String fingerprint = getFingerprint(stops);
+            if (fingerprint != null) {
+                fingerprintRelationsMap.computeIfAbsent(fingerprint, k -> new ArrayList<>()).add(relation);
+            }
+
+            for (int missingLastStops = 1; missingLastStops <= maxMissingLastStops && missingLastStops < stops.size(); missingLastStops++) {
+                String partialFingerprint = getFingerprint(stops.subList(0, stops.size() - missingLastStops));
+                if (partialFingerprint != null) {
+                    missingLastStopsFingerprintRelationsMaps.get(missingLastStops - 1).computeIfAbsent(partialFingerprint, k -> new ArrayList<>()).add(relation);
+                }
+            }
+        }
+    }
+
+    /***
+     * @return the relations with the same stops of the trip (same result of Relation.equalsStops), in the order of the relations the index was created with
+     */
+    public List<Relation> getSameStopsRelations(TripStopsList tripStopsList) {
+        String fingerprint = getFingerprint(tripStopsList.getStopSequenceOSMStopMap().entrySet());
+
+        return (fingerprint == null) ? List.of() : Collections.unmodifiableList(fingerprintRelationsMap.getOrDefault(fingerprint, List.of()));
+    }
+
+    /***
+     * @return the relations with the same stops of the trip plus up to maxMissingLastStops more stops at the end, from the ones with
+     * less missing stops, and then in the order of the relations the index was created with
+     */
+    public List<Relation> getMissingLastStopsRelations(TripStopsList tripStopsList) {
+        String fingerprint = getFingerprint(tripStopsList.getStopSequenceOSMStopMap().entrySet());
+
+        if (fingerprint == null) {
+            return List.of();
+        }
+
+        List<Relation> result = new ArrayList<>();
+        for (Map<String, List<Relation>> fingerprintRelationsMap : missingLastStopsFingerprintRelationsMaps) {
+            result.addAll(fingerprintRelationsMap.getOrDefault(fingerprint, List.of()));
+        }
+
+        return result;
+    }
+
+    //a stop without gtfs_id is never equal to another stop (see Stop.equals), so a list with such a stop has no fingerprint
+    private static String getFingerprint(Collection<Map.Entry<Long, OSMStop>> stops) {
+        StringBuilder fingerprint = new StringBuilder();
+
+        for (Map.Entry<Long, OSMStop> entry : stops) {
+            if (entry.getValue() == null || entry.getValue().getGtfsId() == null) {
+                return null;
+            }
+
+            fingerprint.append(entry.getKey()).append(':').append(entry.getValue().getGtfsId()).append('\n');
+        }
+
+        return fingerprint.toString();
+    }
+}
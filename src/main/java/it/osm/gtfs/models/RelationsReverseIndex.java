@@ -0,0 +1,59 @@
+/**
+ * Licensed under the GNU General Public License version 3
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.gnu.org/licenses/gpl-3.0.html
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package it.osm.gtfs.models;
+
+import java.util.*;
+
+/***
+ * The relations that have a given stop or way as member, so that the relations affected by a change of a stop or of a way
+ * can be found without scanning all the relations
+ */
+public class RelationsReverseIndex {
+    private final Map<String, List<Relation>> stopOSMIdRelationsMap = new HashMap<>();
+    private final Map<Long, List<Relation>> wayIdRelationsMap = new HashMap<>();
+
+    public RelationsReverseIndex(Collection<Relation> relations) {
+        for (Relation relation : relations) {
+            //a stop or a way can be more than once in the same relation, but the relation is indexed only once
+            Set<String> stopOSMIds = new HashSet<>();
+            for (OSMStop osmStop : relation.getStops().values()) {
+                if (osmStop.getOSMId() != null && stopOSMIds.add(osmStop.getOSMId())) {
+                    stopOSMIdRelationsMap.computeIfAbsent(osmStop.getOSMId(), k -> new ArrayList<>()).add(relation);
+                }
+            }
+
+            Set<Long> wayIds = new HashSet<>();
+            for (Relation.OSMWay osmWay : relation.getWayMembers()) {
+                //the ways missing in the OSM file are null
+                if (osmWay != null && wayIds.add(osmWay.getId())) {
+                    wayIdRelationsMap.computeIfAbsent(osmWay.getId(), k -> new ArrayList<>()).add(relation);
+                }
+            }
+        }
+    }
+
+    /***
+     * @return the relations with the stop as member, in the order of the relations the index was created with
+     */
+    public List<Relation> getStopRelations(String stopOSMId) {
+        return Collections.unmodifiableList(stopOSMIdRelationsMap.getOrDefault(stopOSMId, List.of()));
+    }
+
+    /***
+     * @return the relations with the way as member, in the order of the relations the index was created with
+     */
+    public List<Relation> getWayRelations(long wayId) {
+        return Collections.unmodifiableList(wayIdRelationsMap.getOrDefault(wayId, List.of()));
+    }
+}
@@ -13,6 +13,7 @@
  **/
 package it.osm.gtfs.models;
 
+import java.util.Collection;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -35,6 +36,22 @@ public class Shape {
         return id;
     }
 
+    //the shape points ordered by sequence
+    public Collection<ShapePoint> getPoints() {
+        return points.values();
+    }
+
+    /***
+     * @return the coordinates of the points in order, the shapes with a different id but the same points have the same key
+     */
+    public String getGeometryKey() {
+        StringBuilder buffer = new StringBuilder();
+        for (ShapePoint point : points.values()) {
+            buffer.append(point.getLat()).append(',').append(point.getLon()).append(';');
+        }
+        return buffer.toString();
+    }
+
     public String getGPXwithWaypoints(String desc) {
         StringBuilder buffer = new StringBuilder();
         buffer.append("<?xml version=\"1.0\"?><gpx version=\"1.0\" creator=\"GTFS-import\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xmlns=\"http://www.topografix.com/GPX/1/0\" xsi:schemaLocation=\"http://www.topografix.com/GPX/1/0 http://www.topografix.com/GPX/1/0/gpx.xsd\">");
@@ -0,0 +1,139 @@
+/**
+ * Licensed under the GNU General Public License version 3
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.gnu.org/licenses/gpl-3.0.html
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package it.osm.gtfs.models;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/***
+ * The area around the GTFS shapes, made of the grid cells crossed by the shapes plus their neighbour cells.
+ * The cells are as big as the buffer distance, so every point within the buffer distance from a shape is inside the corridor.
+ */
+public class ShapeCorridor {
+    private static final double METERS_PER_LATITUDE_DEGREE = 111320;
+
+    private final double cellLatDegrees;
+    private final double cellLonDegrees;
+    private final Set<Long> shapeCells = new HashSet<>();
+
+    public ShapeCorridor(Collection<Shape> shapes, double bufferMeters) {
+        cellLatDegrees = bufferMeters / METERS_PER_LATITUDE_DEGREE;
+
+        //the longitude degrees get shorter moving away from the equator, we use the mean latitude of the shapes
+        double latitudeSum = 0;
+        int pointsCount = 0;
+
+        for (Shape shape : shapes) {
+            for (Shape.ShapePoint point : shape.getPoints()) {
+                latitudeSum += point.getLat();
+                pointsCount++;
+            }
+        }
+
+        double meanLatitude = (pointsCount > 0) ? latitudeSum / pointsCount : 0;
+        cellLonDegrees = cellLatDegrees / Math.max(Math.cos(Math.toRadians(meanLatitude)), 0.01);
+
+        for (Shape shape : shapes) {
+            Shape.ShapePoint previousPoint = null;
+
+            for (Shape.ShapePoint point : shape.getPoints()) {
+                if (previousPoint == null) {
+                    markCell(point.getLat(), point.getLon());
+                } else {
+                    markSegment(previousPoint, point);
+                }
+
+                previousPoint = point;
+            }
+        }
+    }
+
+    public boolean contains(double lat, double lon) {
+        long row = getRow(lat);
+        long column = getColumn(lon);
+
+        for (long neighbourRow = row - 1; neighbourRow <= row + 1; neighbourRow++) {
+            for (long neighbourColumn = column - 1; neighbourColumn <= column + 1; neighbourColumn++) {
+                if (shapeCells.contains(getCellKey(neighbourRow, neighbourColumn))) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    public boolean intersects(BoundingBox boundingBox) {
+        //we expand the range by one cell, as the neighbour cells of the shapes are part of the corridor too
+        long minRow = getRow(boundingBox.getMinLat()) - 1, maxRow = getRow(boundingBox.getMaxLat()) + 1;
+        long minColumn = getColumn(boundingBox.getMinLon()) - 1, maxColumn = getColumn(boundingBox.getMaxLon()) + 1;
+
+        if ((maxRow - minRow + 1) * (maxColumn - minColumn + 1) > shapeCells.size()) {
+            for (long cell : shapeCells) {
+                long row = cell >> 32;
+                long column = (int) cell;
+
+                if (row >= minRow && row <= maxRow && column >= minColumn && column <= maxColumn) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        for (long row = minRow; row <= maxRow; row++) {
+            for (long column = minColumn; column <= maxColumn; column++) {
+                if (shapeCells.contains(getCellKey(row, column))) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    public int getCellsCount() {
+        return shapeCells.size();
+    }
+
+    //marks all the cells crossed by the segment, stepping at half cell so that no cell is skipped
+    private void markSegment(Shape.ShapePoint from, Shape.ShapePoint to) {
+        double latDelta = to.getLat() - from.getLat();
+        double lonDelta = to.getLon() - from.getLon();
+        int steps = (int) Math.ceil(Math.max(Math.abs(latDelta) / cellLatDegrees, Math.abs(lonDelta) / cellLonDegrees) * 2);
+
+        for (int i = 1; i <= steps; i++) {
+            markCell(from.getLat() + latDelta * i / steps, from.getLon() + lonDelta * i / steps);
+        }
+
+        markCell(to.getLat(), to.getLon());
+    }
+
+    private void markCell(double lat, double lon) {
+        shapeCells.add(getCellKey(getRow(lat), getColumn(lon)));
+    }
+
+    private long getRow(double lat) {
+        return (long) Math.floor(lat / cellLatDegrees);
+    }
+
+    private long getColumn(double lon) {
+        return (long) Math.floor(lon / cellLonDegrees);
+    }
+
+    private static long getCellKey(long row, long column) {
+        return (row << 32) | (column & 0xffffffffL);
+    }
+}
@@ -16,6 +16,7 @@ package it.osm.gtfs.models;
 import it.osm.gtfs.enums.OSMStopType;
 import it.osm.gtfs.enums.WheelchairAccess;
 import it.osm.gtfs.utils.GTFSImportSettings;
+import it.osm.gtfs.utils.VariousUtils;
 import org.jxmapviewer.viewer.GeoPosition;
 
 import java.util.ArrayList;
@@ -34,6 +35,9 @@ public abstract class Stop { //https://stackoverflow.com/a/42756744/9008381
     //private Boolean isMetroStop; //TODO: should we add this check only for GTFS stops or also for osm stops, or not at all?
     private WheelchairAccess wheelchairAccessibility;
 
+    //the name without accents used to compare the names during the matching, computed once as it's compared many times
+    private String accentFreeName;
+
 
     protected Stop(String gtfsId, String code, GeoPosition geoPosition, String name, String operator, OSMStopType stopType, WheelchairAccess wheelchairAccessibility) {
         super();
@@ -75,6 +79,15 @@ public abstract class Stop { //https://stackoverflow.com/a/42756744/9008381
 
     public void setName(String name) {
         this.name = name;
+        this.accentFreeName = null;
+    }
+
+    public String getAccentFreeName() {
+        if (accentFreeName == null && name != null) {
+            accentFreeName = VariousUtils.removeAccents(name);
+        }
+
+        return accentFreeName;
     }
 
     public String getOperator() {
@@ -61,6 +61,11 @@ public class DefaultPlugin implements GTFSPlugin {
         return false;
     }
 
+    @Override
+    public int getRelationSameAsMissingLastStops() {
+        return 0;
+    }
+
     @Override
     public boolean isValidTrip(Collection<Trip> allTrips, Set<Trip> uniqueTrips, Trip trip, TripStopsList stopList) {
         return true;
@@ -61,6 +61,15 @@ public interface GTFSPlugin {
      */
     boolean isRelationSameAs(Relation relation, TripStopsList s);
 
+    /**
+     * How many last stops of an OSM relation can be missing in a GTFS trip for isRelationSameAs() to match them, if that's the only
+     * difference it accepts: then only the relations found by fingerprint are checked with isRelationSameAs() instead of all of them.
+     * -1 means that isRelationSameAs() has some other logic
+     */
+    default int getRelationSameAsMissingLastStops() {
+        return -1;
+    }
+
     /**
      * Custom logic to consider valid or exclude specific trips from the import
      */
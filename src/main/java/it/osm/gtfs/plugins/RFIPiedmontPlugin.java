@@ -107,6 +107,11 @@ public class RFIPiedmontPlugin implements GTFSPlugin {
         }
     }
 
+    @Override
+    public int getRelationSameAsMissingLastStops() {
+        return 1;
+    }
+
     @Override
     public boolean isValidTrip(Collection<Trip> allTrips, Set<Trip> uniqueTrips, Trip trip, TripStopsList s) {
         int frequency = Collections.frequency(allTrips, trip);
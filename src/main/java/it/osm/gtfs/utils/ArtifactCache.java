@@ -0,0 +1,284 @@
+/**
+ * Licensed under the GNU General Public License version 3
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.gnu.org/licenses/gpl-3.0.html
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package it.osm.gtfs.utils;
+
+import org.json.JSONObject;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import static org.fusesource.jansi.Ansi.ansi;
+
+/***
+ * This class stores the generated files (like the merged stops or relations files) by content hash, with a manifest
+ * that records for every entry the inputs and parameters used to create it.
+ * When the same inputs and parameters are used again the stored file is reused instead of generating it again,
+ * and the old or least recently used files are evicted to stay within the configured budget.
+ */
+public class ArtifactCache {
+    private static final String MANIFEST_FILE_NAME = "manifest.json";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File cacheDirectory;
+    private final File manifestFile;
+    private final long maxSizeBytes;
+    private final long maxAgeMillis;
+
+    public ArtifactCache(File cacheDirectory, long maxSizeBytes, long maxAgeMillis) {
+        this.cacheDirectory = cacheDirectory;
+        this.manifestFile = new File(cacheDirectory, MANIFEST_FILE_NAME);
+        this.maxSizeBytes = maxSizeBytes;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    public static ArtifactCache fromSettings() {
+        GTFSImportSettings settings = GTFSImportSettings.getInstance();
+
+        return new ArtifactCache(new File(settings.getArtifactCachePath()), settings.getCacheMaxSizeMB() * 1024L * 1024L,
+                settings.getCacheMaxAgeDays() * 24L * 3600000L);
+    }
+
+    /***
+     * Computes the key of an artifact from what it is made of
+     * @param kind the type of artifact, like "osm-stops"
+     * @param parameters the options that change the content of the artifact
+     * @param inputs the files the artifact is generated from, their content is hashed (not their name nor the Overpass meta element)
+     */
+    public String getKey(String kind, Map<String, String> parameters, List<File> inputs) throws IOException {
+        MessageDigest digest = newDigest();
+
+        digest.update(kind.getBytes(StandardCharsets.UTF_8));
+
+        //the parameters are sorted so that the key doesn't depend on the map order
+        for (Map.Entry<String, String> parameter : new TreeMap<>(parameters).entrySet()) {
+            digest.update(("\n" + parameter.getKey() + "=" + parameter.getValue()).getBytes(StandardCharsets.UTF_8));
+        }
+
+        for (File input : inputs) {
+            digest.update(("\n" + hashInput(input)).getBytes(StandardCharsets.UTF_8));
+        }
+
+        return toHex(digest.digest());
+    }
+
+    /***
+     * Copies the stored artifact with the given key to the destination file
+     * @return true if the artifact was found, false if it needs to be generated
+     */
+    public synchronized boolean restore(String key, File destination) throws IOException {
+        JSONObject manifest = readManifest();
+        JSONObject entry = manifest.optJSONObject(key);
+
+        if (entry == null) {
+            return false;
+        }
+
+        File artifactFile = new File(cacheDirectory, entry.getString("artifact"));
+
+        if (!artifactFile.exists()) {
+            manifest.remove(key);
+            writeManifest(manifest);
+
+            return false;
+        }
+
+        Files.copy(artifactFile.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        entry.put("lastAccess", System.currentTimeMillis());
+        writeManifest(manifest);
+
+        System.out.println(ansi().render("@|green Reusing the cached " + entry.getString("kind") + " file " + entry.getString("artifact") + " |@"));
+
+        return true;
+    }
+
+    /***
+     * Stores a copy of the generated file, the files with the same content are stored only once
+     */
+    public synchronized void store(String key, String kind, Map<String, String> parameters, List<File> inputs, File artifact) throws IOException {
+        cacheDirectory.mkdirs();
+
+        String extension = artifact.getName().contains(".") ? artifact.getName().substring(artifact.getName().lastIndexOf('.')) : "";
+        String artifactFileName = hashFile(artifact) + extension;
+        File artifactFile = new File(cacheDirectory, artifactFileName);
+
+        if (!artifactFile.exists()) {
+            File tempFile = new File(cacheDirectory, artifactFileName + ".tmp");
+            Files.copy(artifact.toPath(), tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tempFile.toPath(), artifactFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        JSONObject inputsHashes = new JSONObject();
+        for (File input : inputs) {
+            inputsHashes.put(input.getName(), hashInput(input));
+        }
+
+        long now = System.currentTimeMillis();
+
+        JSONObject entry = new JSONObject();
+        entry.put("kind", kind);
+        entry.put("artifact", artifactFileName);
+        entry.put("size", artifactFile.length());
+        entry.put("parameters", new JSONObject(parameters));
+        entry.put("inputs", inputsHashes);
+        entry.put("created", now);
+        entry.put("lastAccess", now);
+
+        JSONObject manifest = readManifest();
+        manifest.put(key, entry);
+        writeManifest(manifest);
+    }
+
+    /***
+     * Removes the entries not used for longer than the maximum age, then the least recently used ones
+     * until the stored files fit in the maximum size, and finally the files not referenced by any entry
+     */
+    public synchronized void evict() throws IOException {
+        if (!cacheDirectory.exists()) {
+            return;
+        }
+
+        JSONObject manifest = readManifest();
+        long now = System.currentTimeMillis();
+
+        List<String> keysByLastAccess = new ArrayList<>(manifest.keySet());
+        keysByLastAccess.sort(Comparator.comparingLong(key -> manifest.getJSONObject(key).getLong("lastAccess")));
+
+        for (String key : keysByLastAccess) {
+            if (now - manifest.getJSONObject(key).getLong("lastAccess") > maxAgeMillis) {
+                manifest.remove(key);
+            }
+        }
+
+        keysByLastAccess.retainAll(manifest.keySet());
+
+        while (getReferencedSize(manifest) > maxSizeBytes && !keysByLastAccess.isEmpty()) {
+            manifest.remove(keysByLastAccess.remove(0));
+        }
+
+        writeManifest(manifest);
+
+        Set<String> referencedFiles = new HashSet<>();
+        for (String key : manifest.keySet()) {
+            referencedFiles.add(manifest.getJSONObject(key).getString("artifact"));
+        }
+
+        File[] files = cacheDirectory.listFiles();
+        int deletedFiles = 0;
+
+        if (files != null) {
+            for (File file : files) {
+                if (!file.getName().equals(MANIFEST_FILE_NAME) && !referencedFiles.contains(file.getName()) && file.delete()) {
+                    deletedFiles++;
+                }
+            }
+        }
+
+        if (deletedFiles > 0) {
+            System.out.println(ansi().render("@|yellow Evicted " + deletedFiles + " files from the cache |@"));
+        }
+    }
+
+    //the same file can be referenced by more entries, so it is counted only once
+    private static long getReferencedSize(JSONObject manifest) {
+        Map<String, Long> artifactsSizes = new HashMap<>();
+
+        for (String key : manifest.keySet()) {
+            JSONObject entry = manifest.getJSONObject(key);
+            artifactsSizes.put(entry.getString("artifact"), entry.getLong("size"));
+        }
+
+        return artifactsSizes.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    private JSONObject readManifest() throws IOException {
+        if (!manifestFile.exists()) {
+            return new JSONObject();
+        }
+
+        return new JSONObject(Files.readString(manifestFile.toPath(), StandardCharsets.UTF_8));
+    }
+
+    private void writeManifest(JSONObject manifest) throws IOException {
+        cacheDirectory.mkdirs();
+
+        //written to a temp file first, so that an interrupted run doesn't leave a broken manifest
+        File tempFile = new File(cacheDirectory, MANIFEST_FILE_NAME + ".tmp");
+        Files.writeString(tempFile.toPath(), manifest.toString(2), StandardCharsets.UTF_8);
+        Files.move(tempFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /***
+     * Hashes the content of an input file without the Overpass meta element (like <meta osm_base="2024-05-01T10:21:02Z"/>),
+     * which has the time of the last database update and changes every minute even if the downloaded data is the same
+     */
+    private static String hashInput(File file) throws IOException {
+        MessageDigest digest = newDigest();
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                String trimmedLine = line.trim();
+
+                if (trimmedLine.startsWith("<meta ") && trimmedLine.contains("osm_base=")) {
+                    continue;
+                }
+
+                digest.update(line.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) '\n');
+            }
+        }
+
+        return toHex(digest.digest());
+    }
+
+    private static String hashFile(File file) throws IOException {
+        MessageDigest digest = newDigest();
+
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[BUFFER_SIZE];
+            int x;
+
+            while ((x = in.read(data)) >= 0) {
+                digest.update(data, 0, x);
+            }
+        }
+
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+
+        return hex.toString();
+    }
+}
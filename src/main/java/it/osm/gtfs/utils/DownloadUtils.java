@@ -14,63 +14,231 @@
 package it.osm.gtfs.utils;
 
 import java.io.*;
-import java.net.ConnectException;
 import java.net.HttpURLConnection;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
 
 /***
  * This class contains methods to download files
  */
 public class DownloadUtils {
     private static final int TIMEOUT = 30 * 60000;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final int BUFFER_SIZE = 64 * 1024;
 
-    public static void download(String url, File dest, boolean useGzipCompression) throws IOException {
+    private static final String PARTIAL_FILE_SUFFIX = ".part";
+    private static final String VALIDATORS_FILE_SUFFIX = ".validators";
+
+    /***
+     * Downloads the url to the destination file.
+     * If the destination file already exists the request is conditional (using the ETag and Last-Modified validators
+     * of the previous completed download of the same url), and an interrupted download is resumed with a Range request when the server allows it.
+     * @param useGzipCompression asks the server for a gzip compressed response, which is decompressed on the fly
+     * @return true if new data was downloaded, false if the destination file is still up-to-date
+     */
+    public static boolean download(String url, File dest, boolean useGzipCompression) throws IOException {
         int currentretry = 0;
         final int MAX_RETRIES = 3;
 
+        File partialFile = new File(dest.getPath() + PARTIAL_FILE_SUFFIX);
+        //the validators of the destination file, and the ones of the partial file used to resume it
+        File validatorsFile = new File(dest.getPath() + VALIDATORS_FILE_SUFFIX);
+        File partialValidatorsFile = new File(partialFile.getPath() + VALIDATORS_FILE_SUFFIX);
+
         while (++currentretry <= MAX_RETRIES) {
             System.out.println("Downloading (retry count: " + currentretry + "/" + MAX_RETRIES + "): " + url);
             try {
                 //System.setProperty("sun.net.http.allowRestrictedHeaders", "true");
 
                 HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+                Properties validators = readValidators(validatorsFile, url);
+                Properties partialValidators = readValidators(partialValidatorsFile, url);
 
                 if (useGzipCompression) {
                     conn.setRequestProperty("Accept-Encoding", "gzip");
                 }
 
+                if (dest.exists()) {
+                    setConditionalHeaders(conn, validators, "If-None-Match", "If-Modified-Since");
+                }
+
+                //the byte ranges refer to the compressed data, so we can resume only the uncompressed downloads
+                //and only the partial files of the same url
+                long resumeOffset = (!useGzipCompression && partialFile.exists() && partialValidators.getProperty("url") != null) ? partialFile.length() : 0;
+
+                if (resumeOffset > 0) {
+                    conn.setRequestProperty("Range", "bytes=" + resumeOffset + "-");
+                    //if the remote file changed in the meantime the server sends it all again instead of the range
+                    setConditionalHeaders(conn, partialValidators, "If-Range", "If-Range");
+                }
+
                 //conn.setConnectTimeout(TIMEOUT);
                 //conn.setReadTimeout(TIMEOUT);
                 conn.setRequestMethod("GET");
                 //System.out.println(conn.getRequestProperties());
 
-                InputStream in = conn.getInputStream();
-                FileOutputStream fos = new FileOutputStream(dest);
-                BufferedOutputStream bout = new BufferedOutputStream(fos, 1024);
-                byte[] data = new byte[1024];
+                //the server is overloaded or is rate limiting us: the caller decides how long to wait before asking again
+                int responseCode = conn.getResponseCode();
+                if (responseCode == HTTP_TOO_MANY_REQUESTS || responseCode == HttpURLConnection.HTTP_GATEWAY_TIMEOUT) {
+                    throw new ServerBusyException(url, responseCode, conn.getHeaderFieldInt("Retry-After", -1));
+                }
 
-                int x = 0;
+                if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    System.out.println("Not modified since the last download: " + url);
+                    return false;
+                }
 
-                while ((x = in.read(data, 0, 1024)) >= 0) {
-                    bout.write(data, 0, x);
+                if (responseCode == HTTP_RANGE_NOT_SATISFIABLE) {
+                    partialFile.delete();
+                    continue;
                 }
 
-                bout.close();
-                in.close();
+                boolean isResumed = responseCode == HttpURLConnection.HTTP_PARTIAL;
 
-                return;
-            } catch (SocketTimeoutException | ConnectException e) {
+                //the body of a partial response is only the tail of the file, so it's useless without the partial data of the same file:
+                //with a different ETag we start again from the beginning with a full request
+                String etag = conn.getHeaderField("ETag");
+                if (isResumed && (resumeOffset == 0 || (etag != null && !etag.equals(partialValidators.getProperty("etag"))))) {
+                    conn.disconnect();
+                    partialFile.delete();
+                    partialValidatorsFile.delete();
+                    continue;
+                }
+
+                boolean isGzipEncoded = "gzip".equalsIgnoreCase(conn.getContentEncoding());
+                long expectedLength = isGzipEncoded ? -1 : conn.getContentLengthLong();
+
+                long writtenBytes = 0;
+
+                try (InputStream in = isGzipEncoded ? new GZIPInputStream(conn.getInputStream(), BUFFER_SIZE) : conn.getInputStream();
+                     OutputStream out = new BufferedOutputStream(new FileOutputStream(partialFile, isResumed), BUFFER_SIZE)) {
+                    //the validators of the partial file are saved before the transfer, so that an interrupted download can be resumed on the next run too
+                    writeValidators(partialValidatorsFile, url, conn, isResumed ? partialValidators : null);
+
+                    byte[] data = new byte[BUFFER_SIZE];
+                    int x;
+
+                    while ((x = in.read(data)) >= 0) {
+                        out.write(data, 0, x);
+                        writtenBytes += x;
+                    }
+                }
+
+                if (expectedLength >= 0 && writtenBytes != expectedLength) {
+                    throw new IncompleteDownloadException(url, expectedLength, writtenBytes);
+                }
+
+                Files.move(partialFile.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                //the conditional requests use the new validators only now that the destination file has the new data
+                Files.move(partialValidatorsFile.toPath(), validatorsFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+                return true;
+            } catch (SocketTimeoutException | SocketException | IncompleteDownloadException e) {
                 e.printStackTrace();
             }
         }
         throw new SocketTimeoutException();
     }
 
+    private static void setConditionalHeaders(HttpURLConnection conn, Properties validators, String etagHeader, String lastModifiedHeader) {
+        if (validators.getProperty("etag") != null) {
+            conn.setRequestProperty(etagHeader, validators.getProperty("etag"));
+        } else if (validators.getProperty("last-modified") != null) {
+            conn.setRequestProperty(lastModifiedHeader, validators.getProperty("last-modified"));
+        }
+    }
+
+    //the validators of a different url (like a changed GTFS zip url or Overpass query) are ignored
+    private static Properties readValidators(File validatorsFile, String url) throws IOException {
+        Properties validators = new Properties();
+
+        if (validatorsFile.exists()) {
+            try (InputStream in = new FileInputStream(validatorsFile)) {
+                validators.load(in);
+            }
+        }
+
+        return url.equals(validators.getProperty("url")) ? validators : new Properties();
+    }
+
+    //a resumed download keeps the validators of the first response, as the partial response has the same ones
+    private static void writeValidators(File validatorsFile, String url, HttpURLConnection conn, Properties resumedValidators) throws IOException {
+        Properties validators = (resumedValidators != null) ? resumedValidators : new Properties();
+
+        if (resumedValidators == null) {
+            validators.setProperty("url", url);
+
+            if (conn.getHeaderField("ETag") != null) {
+                validators.setProperty("etag", conn.getHeaderField("ETag"));
+            }
+
+            if (conn.getHeaderField("Last-Modified") != null) {
+                validators.setProperty("last-modified", conn.getHeaderField("Last-Modified"));
+            }
+        }
+
+        try (OutputStream out = new FileOutputStream(validatorsFile)) {
+            validators.store(out, null);
+        }
+    }
+
+    /***
+     * Thrown when the connection ends before all the bytes declared by the server are received
+     */
+    public static class IncompleteDownloadException extends IOException {
+        public IncompleteDownloadException(String url, long expectedLength, long receivedLength) {
+            super("Incomplete download for " + url + ": received " + receivedLength + " of " + expectedLength + " bytes");
+        }
+    }
+
+    /***
+     * Thrown when the server answers with HTTP 429 (Too Many Requests) or 504 (Gateway Timeout)
+     */
+    public static class ServerBusyException extends IOException {
+        private final int responseCode;
+        private final int retryAfterSeconds;
+
+        public ServerBusyException(String url, int responseCode, int retryAfterSeconds) {
+            super("Server busy (HTTP " + responseCode + ") for " + url);
+            this.responseCode = responseCode;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        /***
+         * @return the value of the Retry-After header in seconds, or -1 if the server didn't send it
+         */
+        public int getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+
+    /***
+     * Downloads the zip file (only if it changed since the last download) and extracts it to the directory
+     */
     public static void downloadZip(String zipUrl, String extractDir) {
         try {
-            URL url = new URL(zipUrl);
-            ZipUtils.unzipToDirectory(url.openStream(), extractDir);
+            File extractDirFile = new File(extractDir);
+            File zipFile = new File(extractDirFile.getPath() + ".zip");
+
+            boolean isModified = download(zipUrl, zipFile, false);
+            String[] extractedFiles = extractDirFile.list();
+
+            if (!isModified && extractedFiles != null && extractedFiles.length > 0) {
+                System.out.println("The zip file didn't change, skipping the extraction to " + extractDir);
+                return;
+            }
+
+            ZipUtils.unzipToDirectory(zipFile, extractDir);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -20,6 +20,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.nio.file.Files;
+import java.util.Locale;
 import java.util.Objects;
 import java.util.Properties;
 
@@ -41,6 +42,9 @@ public class GTFSImportSettings {
     public static final String OUTPUT_MATCHED_WITH_UPDATED_METADATA = "gtfs_import_matched_with_updated_metadata.osm";
     public static final String OUTPUT_NOT_MATCHED_STOPS = "gtfs_import_not_matched_stops.osm";
     public static final String OUTPUT_NEW_STOPS_FROM_GTFS = "gtfs_import_new_stops_from_gtfs.osm";
+    public static final String OUTPUT_AFFECTED_RELATIONS = "gtfs_import_affected_relations.txt";
+    public static final String OUTPUT_STOP_AREAS = "gtfs_import_stop_areas.osm";
+    public static final String OUTPUT_ROUTES_DIFF = "gtfs_import_routes_diff.jsonl";
 
     public static final String OSM_OVERPASS_WAYS_FILE_NAME = "overpassways.osm";
     public static final String PROPERTIES_FILE_NAME = "gtfs-import.properties";
@@ -58,6 +62,22 @@ public class GTFSImportSettings {
     private String operator = null;
     private String network = null;
     private boolean useRevisedKey = true;
+    private int overpassMaxConcurrentRequests = 2;
+    private int overpassRequestIntervalMillis = 1000;
+    private boolean useOverpassUnionQuery = false;
+    private double overpassTileSizeDegrees = 0.1;
+    private int overpassMaxTileSizeMB = 32;
+    private int overpassTileCacheMaxAgeHours = 24;
+    private double overpassRegionClusterDistanceDegrees = 0.05;
+    private int shapeCorridorBufferMeters = 300;
+    private String artifactCachePath = null;
+    private int cacheMaxSizeMB = 1024;
+    private int cacheMaxAgeDays = 30;
+    private int matchingThreads = 0;
+    private int waysMatchingThreads = 0;
+    private double fuzzyNameMatchThreshold = 0;
+    private ImportLogger.Level logLevel = ImportLogger.Level.INFO;
+    private int logMessagesPerCategory = 20;
 
 
     private GTFSImportSettings() {
@@ -191,6 +211,85 @@ public class GTFSImportSettings {
             if (overpassApiServer == null)
                 throw new IllegalArgumentException("Please set a valid overpass_api_server value.");
         }
+
+        //optional overpass fetching values
+        overpassMaxConcurrentRequests = readOptionalIntProperty("overpass_max_concurrent_requests", overpassMaxConcurrentRequests, 1);
+        overpassRequestIntervalMillis = readOptionalIntProperty("overpass_request_interval_ms", overpassRequestIntervalMillis, 0);
+        useOverpassUnionQuery = readOptionalBooleanProperty("overpass_union_query", useOverpassUnionQuery);
+        overpassTileSizeDegrees = readOptionalDoubleProperty("overpass_tile_size_degrees", overpassTileSizeDegrees, 0.001);
+        overpassMaxTileSizeMB = readOptionalIntProperty("overpass_max_tile_size_mb", overpassMaxTileSizeMB, 1);
+        overpassTileCacheMaxAgeHours = readOptionalIntProperty("overpass_tile_cache_max_age_hours", overpassTileCacheMaxAgeHours, 0);
+        overpassRegionClusterDistanceDegrees = readOptionalDoubleProperty("overpass_region_cluster_distance_degrees", overpassRegionClusterDistanceDegrees, 0);
+        shapeCorridorBufferMeters = readOptionalIntProperty("shape_corridor_buffer_meters", shapeCorridorBufferMeters, 0);
+        String tempArtifactCachePath = properties.getProperty("artifact_cache_path");
+        if (tempArtifactCachePath != null && !tempArtifactCachePath.isBlank()) {
+            artifactCachePath = tempArtifactCachePath.trim();
+        }
+        cacheMaxSizeMB = readOptionalIntProperty("cache_max_size_mb", cacheMaxSizeMB, 0);
+        cacheMaxAgeDays = readOptionalIntProperty("cache_max_age_days", cacheMaxAgeDays, 0);
+        matchingThreads = readOptionalIntProperty("matching_threads", matchingThreads, 0);
+        waysMatchingThreads = readOptionalIntProperty("ways_matching_threads", waysMatchingThreads, 0);
+        fuzzyNameMatchThreshold = readOptionalDoubleProperty("fuzzy_name_match_threshold", fuzzyNameMatchThreshold, 0, 1);
+        logLevel = readOptionalLogLevelProperty("log_level", logLevel);
+        logMessagesPerCategory = readOptionalIntProperty("log_messages_per_category", logMessagesPerCategory, 0);
+    }
+
+    private int readOptionalIntProperty(String key, int defaultValue, int minValue) {
+        String value = properties.getProperty(key);
+        if (value == null || value.isBlank())
+            return defaultValue;
+
+        try {
+            int parsedValue = Integer.parseInt(value.trim());
+            if (parsedValue >= minValue)
+                return parsedValue;
+        } catch (NumberFormatException ignored) {
+        }
+
+        throw new IllegalArgumentException("Please set a valid " + key + " value (a number greater or equal to " + minValue + ").");
+    }
+
+    private double readOptionalDoubleProperty(String key, double defaultValue, double minValue) {
+        return readOptionalDoubleProperty(key, defaultValue, minValue, Double.POSITIVE_INFINITY);
+    }
+
+    private double readOptionalDoubleProperty(String key, double defaultValue, double minValue, double maxValue) {
+        String value = properties.getProperty(key);
+        if (value == null || value.isBlank())
+            return defaultValue;
+
+        try {
+            double parsedValue = Double.parseDouble(value.trim());
+            if (parsedValue >= minValue && parsedValue <= maxValue)
+                return parsedValue;
+        } catch (NumberFormatException ignored) {
+        }
+
+        if (maxValue == Double.POSITIVE_INFINITY)
+            throw new IllegalArgumentException("Please set a valid " + key + " value (a number greater or equal to " + minValue + ").");
+
+        throw new IllegalArgumentException("Please set a valid " + key + " value (a number between " + minValue + " and " + maxValue + ").");
+    }
+
+    private ImportLogger.Level readOptionalLogLevelProperty(String key, ImportLogger.Level defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null || value.isBlank())
+            return defaultValue;
+
+        try {
+            return ImportLogger.Level.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ignored) {
+        }
+
+        throw new IllegalArgumentException("Please set a valid " + key + " value (DEBUG, INFO, WARN or ERROR).");
+    }
+
+    private boolean readOptionalBooleanProperty(String key, boolean defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null || value.isBlank())
+            return defaultValue;
+
+        return value.trim().equalsIgnoreCase("true");
     }
 
     public String getCachePath() {
@@ -217,6 +316,25 @@ public class GTFSImportSettings {
         return getOsmDataPath() + OSM_OVERPASS_WAYS_FILE_NAME;
     }
 
+    /***
+     * @return the directory of the generated files cache, which can be shared by the configurations of several feeds
+     */
+    public String getArtifactCachePath() {
+        if (artifactCachePath != null) {
+            return artifactCachePath.endsWith(File.separator) ? artifactCachePath : artifactCachePath + File.separator;
+        }
+
+        return getCachePath() + "artifacts" + File.separator;
+    }
+
+    public String getStopsMatchingCacheFilePath() {
+        return getCachePath() + "stops-matching.json";
+    }
+
+    public String getOsmWayTilesPath() {
+        return getOsmDataPath() + "waytiles" + File.separator;
+    }
+
     public String getFullRelsOutputPath() {
         return getCachePath() + "fullrelations" + File.separator;
     }
@@ -245,4 +363,70 @@ public class GTFSImportSettings {
         return useRevisedKey;
     }
 
+    public int getOverpassMaxConcurrentRequests() {
+        return overpassMaxConcurrentRequests;
+    }
+
+    public int getOverpassRequestIntervalMillis() {
+        return overpassRequestIntervalMillis;
+    }
+
+    public boolean useOverpassUnionQuery() {
+        return useOverpassUnionQuery;
+    }
+
+    public double getOverpassTileSizeDegrees() {
+        return overpassTileSizeDegrees;
+    }
+
+    public int getOverpassMaxTileSizeMB() {
+        return overpassMaxTileSizeMB;
+    }
+
+    public int getOverpassTileCacheMaxAgeHours() {
+        return overpassTileCacheMaxAgeHours;
+    }
+
+    public double getOverpassRegionClusterDistanceDegrees() {
+        return overpassRegionClusterDistanceDegrees;
+    }
+
+    public int getShapeCorridorBufferMeters() {
+        return shapeCorridorBufferMeters;
+    }
+
+    public int getCacheMaxSizeMB() {
+        return cacheMaxSizeMB;
+    }
+
+    public int getCacheMaxAgeDays() {
+        return cacheMaxAgeDays;
+    }
+
+    /***
+     * @return the number of threads used for the stops matching and for the routes diff, which is the number of available processors if not set
+     */
+    public int getMatchingThreads() {
+        return (matchingThreads > 0) ? matchingThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /***
+     * @return the number of threads matching the GTFS shapes with the OSM ways, which is the same of getMatchingThreads() if not set
+     */
+    public int getWaysMatchingThreads() {
+        return (waysMatchingThreads > 0) ? waysMatchingThreads : getMatchingThreads();
+    }
+
+    public double getFuzzyNameMatchThreshold() {
+        return fuzzyNameMatchThreshold;
+    }
+
+    public ImportLogger.Level getLogLevel() {
+        return logLevel;
+    }
+
+    public int getLogMessagesPerCategory() {
+        return logMessagesPerCategory;
+    }
+
 }
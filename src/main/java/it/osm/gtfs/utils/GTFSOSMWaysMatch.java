@@ -12,23 +12,21 @@ import com.graphhopper.matching.MatchResult;
 import com.graphhopper.matching.Observation;
 import com.graphhopper.routing.ev.OSMWayID;
 import com.graphhopper.util.*;
-import org.fusesource.jansi.Ansi;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
-import static org.fusesource.jansi.Ansi.ansi;
-
 
 /***
- * This class contains the logic to match gpx xml data to OSM ways using GraphHopper
+ * This class contains the logic to match gpx xml data to OSM ways using GraphHopper.
+ * matchGPX() can be called by multiple threads: the GraphHopper graph is read-only and shared, while every thread gets its own MapMatching instance
  */
 public class GTFSOSMWaysMatch {
-    private StopWatch importSW;
-    private StopWatch matchSW;
+    private static final ImportLogger.Category MATCH_STATISTICS = ImportLogger.category(ImportLogger.Level.INFO, "GPX shapes matched with the OSM ways");
+
     private XmlMapper xmlMapper;
-    private MapMatching mapMatching;
+    private ThreadLocal<MapMatching> mapMatching;
     private GraphHopper hopper;
     private Translation tr;
     private boolean withRoute;
@@ -56,9 +54,12 @@ public class GTFSOSMWaysMatch {
         PMap hints = new PMap();
         String profile_graphhopper = "car"; //TODO: maybe remove this as it is already specified in the yml file?
         hints.putObject("profile", profile_graphhopper);
-        mapMatching = MapMatching.fromGraphHopper(hopper, hints);
-        mapMatching.setTransitionProbabilityBeta(2.0);
-        mapMatching.setMeasurementErrorSigma(40);
+        mapMatching = ThreadLocal.withInitial(() -> {
+            MapMatching threadMapMatching = MapMatching.fromGraphHopper(hopper, hints);
+            threadMapMatching.setTransitionProbabilityBeta(2.0);
+            threadMapMatching.setMeasurementErrorSigma(40);
+            return threadMapMatching;
+        });
 
 
         String instructions_locale = "";
@@ -74,9 +75,10 @@ public class GTFSOSMWaysMatch {
             throw new IllegalStateException("You must call initMatch() first to initialize GraphHopper and use the returned instance before matching gpx data!");
         }
 
+        StopWatch importSW = new StopWatch();
+        StopWatch matchSW = new StopWatch();
+
         try {
-            importSW = new StopWatch();
-            matchSW = new StopWatch();
 
             importSW.start();
 
@@ -95,13 +97,13 @@ public class GTFSOSMWaysMatch {
 
 
             matchSW.start();
-            MatchResult matchResult = mapMatching.match(measurements);
+            MatchResult matchResult = mapMatching.get().match(measurements);
             matchSW.stop();
 
-            System.out.println("\tMatches:\t" + matchResult.getEdgeMatches().size() + ", GPS entries:" + measurements.size());
-            System.out.println("\tGPX length:\t" + (float) matchResult.getGpxEntriesLength() + " vs " + (float) matchResult.getMatchLength());
-
-            System.out.println(ansi().fg(Ansi.Color.GREEN).a("GPS import took: ").reset().a(importSW.getSeconds() + " s").fg(Ansi.Color.GREEN).a(", match took: ").reset().a(matchSW.getSeconds() + " s"));
+            //a single message, so that the lines of the shapes matched at the same time are not mixed
+            ImportLogger.log(MATCH_STATISTICS, () -> "\tMatches:\t" + matchResult.getEdgeMatches().size() + ", GPS entries:" + measurements.size()
+                    + "\n\tGPX length:\t" + (float) matchResult.getGpxEntriesLength() + " vs " + (float) matchResult.getMatchLength()
+                    + "\n@|green GPS import took: |@" + importSW.getSeconds() + " s@|green , match took: |@" + matchSW.getSeconds() + " s");
 
 
             //prendo gli id delle vie per ogni edge virtuale creato da graphhopper e li metto in un array
@@ -149,11 +151,20 @@ public class GTFSOSMWaysMatch {
         } catch (Exception e) {
             importSW.stop();
             matchSW.stop();
-            System.out.println(ansi().render("@|red Problem with the following XML data: |@" + xmlGpxData));
+            ImportLogger.log(ImportLogger.Level.ERROR, "@|red Problem with the following XML data: |@" + xmlGpxData);
 
+            //the stack trace is printed after the queued messages, so that it follows the message above
+            ImportLogger.flush();
             e.printStackTrace(System.err);
         }
 
         return null;
     }
+
+    /***
+     * Prints how many shapes were matched since the last call, the statistics of the single matches are printed only for the first ones
+     */
+    public static void summarizeMatches() {
+        ImportLogger.summarize(MATCH_STATISTICS);
+    }
 }
@@ -0,0 +1,203 @@
+/**
+ * Licensed under the GNU General Public License version 3
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.gnu.org/licenses/gpl-3.0.html
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package it.osm.gtfs.utils;
+
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import static org.fusesource.jansi.Ansi.ansi;
+
+/***
+ * This class prints the messages of the loops that can log the same event thousands of times (like the skipped OSM stops or the missing GTFS stops).
+ * Every message belongs to a category: only the first messages of every category are printed, then the others are only counted
+ * and summarize() prints how many they were ("1,243 OSM stops skipped for operator mismatch").
+ * The messages are built only if they are printed, and they are written by a background thread through a bounded queue,
+ * so that the loops don't wait for the console. The jansi markup (like "@|yellow text|@") is only rendered when the output is a terminal.
+ */
+public class ImportLogger {
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final Pattern MARKUP_PATTERN = Pattern.compile("@\\|[\\w,]+ (.*?)\\|@", Pattern.DOTALL);
+    //flush() gives up when the writer doesn't write anything for this time, so that a stuck console doesn't block the import
+    private static final long FLUSH_IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private static volatile Level minLevel = Level.INFO;
+    private static volatile int messagesPerCategory = 20;
+
+    private static final boolean renderAnsi = System.console() != null;
+    private static final BlockingQueue<String> queue = new ArrayBlockingQueue<>(8192);
+    private static final AtomicLong queuedMessages = new AtomicLong();
+    private static final AtomicLong writtenMessages = new AtomicLong();
+    private static volatile Thread writerThread;
+
+    /***
+     * @param minLevel the messages with a lower level are only counted
+     * @param messagesPerCategory how many messages of every category are printed before summarize() is called again
+     */
+    public static void configure(Level minLevel, int messagesPerCategory) {
+        ImportLogger.minLevel = minLevel;
+        ImportLogger.messagesPerCategory = messagesPerCategory;
+    }
+
+    /***
+     * @param summary what is counted, printed after the count by summarize(), like "OSM stops skipped for operator mismatch"
+     */
+    public static Category category(Level level, String summary) {
+        return new Category(level, summary);
+    }
+
+    public static void log(Category category, Supplier<String> message) {
+        int count = category.count.incrementAndGet();
+
+        if (category.level.compareTo(minLevel) >= 0 && count <= messagesPerCategory) {
+            print(message.get());
+        }
+    }
+
+    /***
+     * Prints a message that doesn't belong to a category, like the progress of a long task
+     */
+    public static void log(Level level, String message) {
+        if (level.compareTo(minLevel) >= 0) {
+            print(message);
+        }
+    }
+
+    /***
+     * Prints how many messages were logged for every given category, then counts them again from zero
+     */
+    public static void summarize(Category... categoriesToSummarize) {
+        for (Category category : categoriesToSummarize) {
+            int count = category.count.getAndSet(0);
+
+            if (count > 0 && category.level.compareTo(minLevel) >= 0) {
+                int hidden = count - Math.min(count, messagesPerCategory);
+                String color = (category.level.compareTo(Level.WARN) >= 0) ? "yellow" : "cyan";
+
+                print("@|" + color + " " + String.format("%,d", count) + " " + category.summary + ((hidden > 0) ? " (" + String.format("%,d", hidden) + " not shown)" : "") + " |@");
+            }
+        }
+
+        flush();
+    }
+
+    /***
+     * Waits until all the queued messages are written, to be called before printing directly to the console
+     */
+    public static void flush() {
+        waitForWriter(FLUSH_IDLE_TIMEOUT_NANOS);
+    }
+
+    /***
+     * @param idleTimeoutNanos how long to wait for the writer when it doesn't write any message
+     */
+    private static void waitForWriter(long idleTimeoutNanos) {
+        long lastWrittenMessages = writtenMessages.get();
+        long lastProgress = System.nanoTime();
+
+        while (writtenMessages.get() < queuedMessages.get()) {
+            Thread thread = writerThread;
+
+            if (thread == null || !thread.isAlive()) {
+                return;
+            }
+
+            long currentWrittenMessages = writtenMessages.get();
+
+            if (currentWrittenMessages != lastWrittenMessages) {
+                lastWrittenMessages = currentWrittenMessages;
+                lastProgress = System.nanoTime();
+            } else if (System.nanoTime() - lastProgress >= idleTimeoutNanos) {
+                return;
+            }
+
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+    }
+
+    private static void print(String message) {
+        startWriterThread();
+
+        try {
+            queuedMessages.incrementAndGet();
+            //when the queue is full the loop waits for the console, so that no message is lost
+            queue.put(message);
+        } catch (InterruptedException e) {
+            queuedMessages.decrementAndGet();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static synchronized void startWriterThread() {
+        if (writerThread != null) {
+            return;
+        }
+
+        writerThread = new Thread(() -> {
+            PrintStream out = System.out;
+
+            try {
+                while (true) {
+                    String message = queue.poll();
+
+                    //the console is flushed only when there's nothing else to write
+                    if (message == null) {
+                        out.flush();
+                        message = queue.take();
+                    }
+
+                    try {
+                        out.println(renderAnsi ? ansi().render(message).toString() : MARKUP_PATTERN.matcher(message).replaceAll("$1"));
+                    } catch (RuntimeException e) {
+                        //a message with a broken markup is written as it is, and the writer goes on with the next ones
+                        out.println(message);
+                        System.err.println("ImportLogger: couldn't render the message above: " + e);
+                    } finally {
+                        writtenMessages.incrementAndGet();
+                    }
+                }
+            } catch (InterruptedException ignored) {
+            }
+        }, "import-logger");
+
+        writerThread.setDaemon(true);
+        writerThread.start();
+
+        //the queued messages are written also when the tool exits with System.exit()
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            waitForWriter(TimeUnit.SECONDS.toNanos(2));
+            System.out.flush();
+        }));
+    }
+
+    public static class Category {
+        private final Level level;
+        private final String summary;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private Category(Level level, String summary) {
+            this.level = level;
+            this.summary = summary;
+        }
+    }
+}
@@ -3,106 +3,396 @@ package it.osm.gtfs.utils;
 import it.osm.gtfs.enums.OSMStopType;
 import it.osm.gtfs.models.GTFSStop;
 import it.osm.gtfs.models.OSMStop;
+import it.osm.gtfs.models.Stop;
 import org.apache.commons.lang3.StringUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
 
-import java.util.List;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static org.fusesource.jansi.Ansi.ansi;
 
 public class MatchUtils {
-    List<GTFSStop> globalGtfsStopsList;
-    List<OSMStop> globalOsmStopsList;
+    private static final int MAX_MATCH_DISTANCE = 2000;
+    private static final int NAME_MATCH_DISTANCE = 50;
+
+    //to be changed when the matching rules change, so that the results saved by the previous versions are not used
+    private static final String MATCHING_CACHE_VERSION = "4";
+    private static final String KEY_CANDIDATES_PHASE = "key";
+    private static final String NEAR_CANDIDATES_PHASE = "near";
+
+    //best rule first, then the closest stops, then by ids so that the order never depends on the order of the lists
+    private static final Comparator<StopMatchCandidate> MATCH_CANDIDATES_COMPARATOR = Comparator
+            .comparing((StopMatchCandidate candidate) -> candidate.rule)
+            .thenComparingDouble(candidate -> candidate.distance)
+            .thenComparing(candidate -> candidate.gtfsStop.getGtfsId(), Comparator.nullsLast(Comparator.naturalOrder()))
+            .thenComparing(candidate -> candidate.osmStop.getOSMId(), Comparator.nullsLast(Comparator.naturalOrder()));
+
+    //the messages of the candidates are printed by rule, the candidates without a rule have a message only when they were not matched by name
+    private static final Map<MatchRule, ImportLogger.Category> MATCH_MESSAGES_CATEGORIES = new EnumMap<>(Map.of(
+            MatchRule.SAME_REF_DISTANT, ImportLogger.category(ImportLogger.Level.WARN, "GTFS stops matched by ref with a too distant OSM stop"),
+            MatchRule.SAME_GTFS_ID, ImportLogger.category(ImportLogger.Level.WARN, "GTFS stops matched by gtfs_id with an OSM stop with a different ref"),
+            MatchRule.SAME_NAME, ImportLogger.category(ImportLogger.Level.WARN, "GTFS stops matched only by name"),
+            MatchRule.SIMILAR_NAME, ImportLogger.category(ImportLogger.Level.WARN, "GTFS stops matched by a similar name")));
+    private static final ImportLogger.Category NOT_MATCHED_BY_NAME_MESSAGES = ImportLogger.category(ImportLogger.Level.WARN, "GTFS stops not matched by name as nearby OSM stops have the same or an equally similar name");
+    private static final ImportLogger.Category MULTIPLE_MATCHES = ImportLogger.category(ImportLogger.Level.WARN, "matches discarded as the GTFS or the OSM stop is already matched with a better candidate");
+
+    OSMStopsSpatialIndex osmStopsSpatialIndex;
+    Map<String, List<OSMStop>> codeOSMStopsMap;
+    Map<String, List<OSMStop>> gtfsIdOSMStopsMap;
+    StopNamesTrigramIndex stopNamesTrigramIndex;
+    double fuzzyNameMatchThreshold;
+    StopsMatchingCache matchingCache;
+    Set<GTFSStop> changedGtfsStops;
+    Map<String, OSMStop> osmIdOSMStopsMap;
 
     public void doStopsMatching(List<GTFSStop> gtfsStopsList, List<OSMStop> osmStopsList) {
 
-        this.globalGtfsStopsList = gtfsStopsList;
-        this.globalOsmStopsList = osmStopsList;
+        //the indexes are used to check only the OSM stops that can match with the rules of the evaluate() function
+        this.osmStopsSpatialIndex = new OSMStopsSpatialIndex(osmStopsList);
+        this.codeOSMStopsMap = new HashMap<>();
+        this.gtfsIdOSMStopsMap = new HashMap<>();
 
+        for (OSMStop osmStop : osmStopsList) {
+            if (osmStop.getCode() != null) {
+                codeOSMStopsMap.computeIfAbsent(osmStop.getCode(), k -> new ArrayList<>()).add(osmStop);
+            }
 
-        //TODO: consider inverting the for loops, first osmstops and then gtfsstops, so that we can integrate the second step of the cmdgeneratebusstopsimport there directly
-        for (GTFSStop gtfsStop : gtfsStopsList) {
+            if (osmStop.getGtfsId() != null) {
+                gtfsIdOSMStopsMap.computeIfAbsent(osmStop.getGtfsId(), k -> new ArrayList<>()).add(osmStop);
+            }
+        }
 
-            for (OSMStop osmStop : osmStopsList) {
+        this.fuzzyNameMatchThreshold = GTFSImportSettings.getInstance().getFuzzyNameMatchThreshold();
+        this.stopNamesTrigramIndex = (fuzzyNameMatchThreshold > 0) ? new StopNamesTrigramIndex(osmStopsList, osmStopsSpatialIndex) : null;
 
-                //check the match() function to understand the criteria used to consider whether the GTFS and OSM stops are the same or not
-                if (match(gtfsStop, osmStop)) {
-                    if (osmStop.getStopType().equals(OSMStopType.TRAM_STOP_POSITION)) { //todo: maybe add also a check for OSMStopType.PHYSICAL_TRAM_STOP ?
+        //the candidates of the GTFS stops not changed since the last run, and without changed OSM stops near them, are taken from the cache
+        this.matchingCache = StopsMatchingCache.fromSettings(MATCHING_CACHE_VERSION + "|" + GTFSImportSettings.getInstance().getPlugin().getClass().getName() + "|" + fuzzyNameMatchThreshold);
+        this.matchingCache.load();
+        this.changedGtfsStops = matchingCache.getChangedGtfsStops(gtfsStopsList, osmStopsList, MAX_MATCH_DISTANCE);
+        this.osmIdOSMStopsMap = new HashMap<>();
 
-                        //we check for multiple matches for tram stops && bus stops, and we handle them based on how distant the current loop stop and the already matched stop are
-                        if (gtfsStop.railwayStopMatchedWith != null) {
-                            System.out.println(ansi().render("@|red Multiple match found between current GTFS stop and two other OSM stops: |@"));
-                            System.out.println(ansi().render("@|red Current GTFS stop: |@" + gtfsStop));
-                            System.out.println(ansi().render("@|red Current-matching OSM stop: |@" + osmStop));
-                            System.out.println(ansi().render("@|red Already-matched OSM stop: |@" + gtfsStop.osmStopMatchedWith));
+        for (OSMStop osmStop : osmStopsList) {
+            if (osmStop.getOSMId() != null) {
+                osmIdOSMStopsMap.put(osmStop.getOSMId(), osmStop);
+            }
+        }
 
-                            double distanceBetweenCurrentStop = OSMDistanceUtils.distVincenty(gtfsStop.getGeoPosition(), osmStop.getGeoPosition());
-                            double distanceBetweenAlreadyMatchedStop = OSMDistanceUtils.distVincenty(gtfsStop.getGeoPosition(), gtfsStop.railwayStopMatchedWith.getGeoPosition());
+        System.out.println(ansi().render("@|cyan Stops matching: " + changedGtfsStops.size() + " of " + gtfsStopsList.size() + " GTFS stops changed or near changed OSM stops, the others reuse the previous results |@"));
 
-                            if (distanceBetweenCurrentStop > distanceBetweenAlreadyMatchedStop) {
+        ForkJoinPool pool = new ForkJoinPool(GTFSImportSettings.getInstance().getMatchingThreads());
 
-                                System.out.println(ansi().render("@|cyan Keeping the closest one, which is " + gtfsStop.osmStopMatchedWith + "|@"));
+        try {
+            //first phase: the OSM stops with the same ref or gtfs_id of the GTFS stop, found with the hash indexes, which are the large majority of the matches
+            //check the evaluate() function to understand the criteria used to consider whether the GTFS and OSM stops are the same or not
+            List<StopMatchCandidate> keyCandidates = evaluateInParallel(pool, gtfsStopsList, withCache(KEY_CANDIDATES_PHASE, this::evaluateKeyCandidates));
+            putCandidatesInCache(KEY_CANDIDATES_PHASE, gtfsStopsList, keyCandidates);
+            resolveCandidates(keyCandidates);
 
-                                continue;
-                            }
+            int keyMatchedStops = countMatchedStops(gtfsStopsList);
 
-                            System.out.println(ansi().render("@|cyan Keeping the closest one, which is " + osmStop + "|@"));
+            //second phase: only the GTFS stops with a free slot (see resolveCandidates) are checked with the distance and name rules against the near OSM stops,
+            //for example a GTFS stop whose tram stop position was matched by ref can still be matched with its platform
+            //TODO: consider inverting the for loops, first osmstops and then gtfsstops, so that we can integrate the second step of the cmdgeneratebusstopsimport there directly
+            List<GTFSStop> unmatchedGtfsStops = new ArrayList<>();
 
-                            gtfsStop.railwayStopMatchedWith.gtfsStopMatchedWith = null;
+            for (GTFSStop gtfsStop : gtfsStopsList) {
+                if (gtfsStop.osmStopMatchedWith == null || gtfsStop.railwayStopMatchedWith == null) {
+                    unmatchedGtfsStops.add(gtfsStop);
+                }
+            }
 
-                        }
+            List<StopMatchCandidate> nearCandidates = evaluateInParallel(pool, unmatchedGtfsStops, withCache(NEAR_CANDIDATES_PHASE, this::evaluateNearCandidates));
+            putCandidatesInCache(NEAR_CANDIDATES_PHASE, unmatchedGtfsStops, nearCandidates);
+            resolveCandidates(nearCandidates);
 
-                        gtfsStop.railwayStopMatchedWith = osmStop;
+            int spatialMatchedStops = countMatchedStops(gtfsStopsList) - keyMatchedStops;
 
-                    } else {
-                        if (osmStop.gtfsStopMatchedWith != null || gtfsStop.osmStopMatchedWith != null) {
-                            System.out.println(ansi().render("@|red Multiple match found between current GTFS stop and two other OSM stops: |@"));
-                            System.out.println(ansi().render("@|red Current GTFS stop: |@" + gtfsStop));
-                            System.out.println(ansi().render("@|red Current-matching OSM stop: |@" + osmStop));
-                            System.out.println(ansi().render("@|red Already-matched OSM stop: |@" + gtfsStop.osmStopMatchedWith));
+            ImportLogger.summarize(MATCH_MESSAGES_CATEGORIES.get(MatchRule.SAME_REF_DISTANT), MATCH_MESSAGES_CATEGORIES.get(MatchRule.SAME_GTFS_ID),
+                    MATCH_MESSAGES_CATEGORIES.get(MatchRule.SAME_NAME), MATCH_MESSAGES_CATEGORIES.get(MatchRule.SIMILAR_NAME), NOT_MATCHED_BY_NAME_MESSAGES, MULTIPLE_MATCHES);
 
-                            double distanceBetweenCurrentStop = OSMDistanceUtils.distVincenty(gtfsStop.getGeoPosition(), osmStop.getGeoPosition());
-                            double distanceBetweenAlreadyMatchedStop = OSMDistanceUtils.distVincenty(gtfsStop.getGeoPosition(), gtfsStop.osmStopMatchedWith.getGeoPosition());
+            System.out.println(ansi().render("@|cyan Stops matching: " + keyMatchedStops + " GTFS stops matched by ref/gtfs_id, " + spatialMatchedStops + " by distance/name, "
+                    + (gtfsStopsList.size() - keyMatchedStops - spatialMatchedStops) + " not matched |@"));
+        } finally {
+            pool.shutdown();
+        }
 
-                            //in case of multiple matching we check what stop is the closest one to the gtfs coordinates between the current loop stop and the already-matched stop
-                            if (distanceBetweenCurrentStop > distanceBetweenAlreadyMatchedStop) {
+        try {
+            matchingCache.save(osmStopsList);
+        } catch (IOException e) {
+            System.out.println(ansi().render("@|yellow Couldn't save the stops matching cache: " + e.getMessage() + " |@"));
+        }
+    }
 
-                                System.out.println(ansi().render("@|cyan Keeping the closest one, which is " + gtfsStop.osmStopMatchedWith + "|@"));
-                                //in case the already-matched stop is the closest one to the gtfs coordinates then we skip setting the stop match variables, and we go ahead with the loop
-                                continue;
-                            }
+    /***
+     * Returns the candidates saved in the cache for the GTFS stops that didn't change, and evaluates them for the others
+     */
+    private Function<GTFSStop, List<StopMatchCandidate>> withCache(String phase, Function<GTFSStop, List<StopMatchCandidate>> evaluator) {
+        return gtfsStop -> {
+            if (!changedGtfsStops.contains(gtfsStop)) {
+                List<StopMatchCandidate> cachedCandidates = fromJSON(gtfsStop, matchingCache.getCandidates(gtfsStop, phase));
 
-                            System.out.println(ansi().render("@|cyan Keeping the closest one, which is " + osmStop + "|@"));
+                if (cachedCandidates != null) {
+                    return cachedCandidates;
+                }
+            }
 
-                            //in case the current loop stop is the closest one to the gtfs coordinates, we remove the matched gtfs stop from the  already matched osm stop
-                            gtfsStop.osmStopMatchedWith.gtfsStopMatchedWith = null;
-                            //gtfsStop.osmStopMatchedWith = null; nope because we just replace 5 lines later
-                        }
+            return evaluator.apply(gtfsStop);
+        };
+    }
 
-                        gtfsStop.stopsMatchedWith.add(osmStop);
-                        osmStop.stopsMatchedWith.add(gtfsStop);
+    private void putCandidatesInCache(String phase, List<GTFSStop> gtfsStops, List<StopMatchCandidate> candidates) {
+        Map<GTFSStop, JSONArray> gtfsStopCandidatesMap = new IdentityHashMap<>();
 
-                        gtfsStop.osmStopMatchedWith = osmStop;
+        for (GTFSStop gtfsStop : gtfsStops) {
+            gtfsStopCandidatesMap.put(gtfsStop, new JSONArray());
+        }
 
-                    }
+        for (StopMatchCandidate candidate : candidates) {
+            gtfsStopCandidatesMap.get(candidate.gtfsStop).put(candidate.toJSON());
+        }
 
-                    osmStop.gtfsStopMatchedWith = gtfsStop;
+        for (Map.Entry<GTFSStop, JSONArray> entry : gtfsStopCandidatesMap.entrySet()) {
+            matchingCache.putCandidates(entry.getKey(), phase, entry.getValue());
+        }
+    }
 
-                }
+    /***
+     * @return the candidates saved in the cache, or null if they weren't saved or an OSM stop of a candidate doesn't exist anymore
+     */
+    private List<StopMatchCandidate> fromJSON(GTFSStop gtfsStop, JSONArray cachedCandidates) {
+        if (cachedCandidates == null) {
+            return null;
+        }
+
+        List<StopMatchCandidate> result = new ArrayList<>();
+
+        for (int i = 0; i < cachedCandidates.length(); i++) {
+            JSONObject cachedCandidate = cachedCandidates.getJSONObject(i);
+            OSMStop osmStop = osmIdOSMStopsMap.get(cachedCandidate.optString("osmId", null));
+
+            if (osmStop == null) {
+                return null;
             }
+
+            String rule = cachedCandidate.optString("rule", null);
+
+            result.add(new StopMatchCandidate(gtfsStop, osmStop, cachedCandidate.getDouble("distance"), (rule == null) ? null : MatchRule.valueOf(rule),
+                    cachedCandidate.optString("message", null), cachedCandidate.getBoolean("needsPositionReview")));
         }
+
+        return result;
     }
 
     /***
-     *
-     * @param gtfsStop A GTFS stop
-     * @param osmStop An OSM stop
-     * @return Returns whether the two stops are the same stop or not
+     * Evaluates the candidates of the GTFS stops on the pool, without changing any stop
+     * @return the evaluated candidates of all the GTFS stops, in the order of the GTFS stops list and then of the candidates,
+     * so that the list is the same with any number of threads
      */
-    public boolean match(GTFSStop gtfsStop, OSMStop osmStop) {
-        int maxDist = 100;
+    private static List<StopMatchCandidate> evaluateInParallel(ForkJoinPool pool, List<GTFSStop> gtfsStops, Function<GTFSStop, List<StopMatchCandidate>> evaluator) {
+        try {
+            return pool.submit(() -> gtfsStops.parallelStream()
+                    .map(evaluator)
+                    .flatMap(List::stream)
+                    .collect(Collectors.toUnmodifiableList())).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Stops matching interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Stops matching failed", e.getCause());
+        }
+    }
+
+    private List<StopMatchCandidate> evaluateKeyCandidates(GTFSStop gtfsStop) {
+        List<StopMatchCandidate> result = new ArrayList<>();
+
+        for (OSMStop osmStop : getKeyCandidates(gtfsStop)) {
+            addIfNotNull(result, evaluate(gtfsStop, osmStop, StopsDistanceUtils.thresholdDistance(gtfsStop.getGeoPosition(), osmStop.getGeoPosition())));
+        }
 
-        double distanceBetween = OSMDistanceUtils.distVincenty(gtfsStop.getGeoPosition(), osmStop.getGeoPosition());
-        String debugData = "GTFS Stop data: [" + gtfsStop + "] -> OSM Stop data: [" + osmStop + "], exact distance between: " + distanceBetween + " m";
+        return result;
+    }
+
+    private List<StopMatchCandidate> evaluateNearCandidates(GTFSStop gtfsStop) {
+        Set<OSMStop> keyCandidates = Collections.newSetFromMap(new IdentityHashMap<>());
+        keyCandidates.addAll(getKeyCandidates(gtfsStop));
+
+        List<OSMStop> nearCandidates = osmStopsSpatialIndex.getCandidateStops(gtfsStop.getGeoPosition(), MAX_MATCH_DISTANCE, null);
+
+        double[] latitudes = new double[nearCandidates.size()];
+        double[] longitudes = new double[nearCandidates.size()];
+
+        for (int i = 0; i < nearCandidates.size(); i++) {
+            latitudes[i] = nearCandidates.get(i).getGeoPosition().getLatitude();
+            longitudes[i] = nearCandidates.get(i).getGeoPosition().getLongitude();
+        }
+
+        double[] distances = StopsDistanceUtils.thresholdDistances(gtfsStop.getGeoPosition().getLatitude(), gtfsStop.getGeoPosition().getLongitude(), latitudes, longitudes);
+
+        List<StopMatchCandidate> result = new ArrayList<>();
+
+        for (int i = 0; i < nearCandidates.size(); i++) {
+            //the stops with the same ref or gtfs_id were already checked in the first phase, the stops of a type already matched are discarded by resolveCandidates()
+            if (!keyCandidates.contains(nearCandidates.get(i))) {
+                addIfNotNull(result, evaluate(gtfsStop, nearCandidates.get(i), distances[i]));
+            }
+        }
+
+        //the names are compared with the fuzzy rule only if the other rules found nothing for this stop
+        if (result.isEmpty() && stopNamesTrigramIndex != null) {
+            addIfNotNull(result, evaluateSimilarNameCandidates(gtfsStop, keyCandidates));
+        }
+
+        return result;
+    }
+
+    /***
+     * The fuzzy version of the same name rule of evaluate(): a physical bus/tram stop without ref and gtfs_id is matched
+     * if it's the only stop with the most similar name among the near stops with a similarity above the threshold
+     */
+    private StopMatchCandidate evaluateSimilarNameCandidates(GTFSStop gtfsStop, Set<OSMStop> keyCandidates) {
+        if (!isPhysicalBusOrTramStop(gtfsStop) || gtfsStop.getFixedName() == null) {
+            return null;
+        }
+
+        List<StopNamesTrigramIndex.SimilarStop> similarStops = new ArrayList<>();
+
+        for (StopNamesTrigramIndex.SimilarStop similarStop : stopNamesTrigramIndex.getSimilarStops(gtfsStop.getFixedName(), gtfsStop.getGeoPosition(), NAME_MATCH_DISTANCE, fuzzyNameMatchThreshold)) {
+            OSMStop osmStop = similarStop.getOsmStop();
+
+            if (osmStop.getGtfsId() == null && osmStop.getCode() == null && isPhysicalBusOrTramStop(osmStop) && !keyCandidates.contains(osmStop)) {
+                similarStops.add(similarStop);
+            }
+        }
+
+        if (similarStops.isEmpty()) {
+            return null;
+        }
+
+        OSMStop osmStop = similarStops.get(0).getOsmStop();
+        double distanceBetween = StopsDistanceUtils.distance(gtfsStop.getGeoPosition(), osmStop.getGeoPosition());
+        String debugData = getDebugData(gtfsStop, osmStop, distanceBetween) + ", name similarity: " + similarStops.get(0).getSimilarity();
+
+        if (similarStops.size() > 1 && similarStops.get(1).getSimilarity() == similarStops.get(0).getSimilarity()) {
+            return new StopMatchCandidate(gtfsStop, osmStop, distanceBetween, null, "@|yellow Warning: Stops with similar name not matched as nearby stops have an equally similar name / |@" + debugData, false);
+        }
+
+        return new StopMatchCandidate(gtfsStop, osmStop, distanceBetween, MatchRule.SIMILAR_NAME, "@|yellow Warning: Stops with similar name matched / |@" + debugData, false);
+    }
+
+    private static boolean isPhysicalBusOrTramStop(Stop stop) {
+        return stop.getStopType().equals(OSMStopType.PHYSICAL_BUS_STOP) || stop.getStopType().equals(OSMStopType.PHYSICAL_TRAM_STOP);
+    }
+
+    private static boolean isRailwayStopPosition(OSMStop osmStop) {
+        return osmStop.getStopType().equals(OSMStopType.TRAM_STOP_POSITION); //todo: maybe add also a check for OSMStopType.PHYSICAL_TRAM_STOP ?
+    }
+
+    //the OSM stop already matched with the GTFS stop in the slot of the type of the given OSM stop
+    private static OSMStop getMatchedSlot(GTFSStop gtfsStop, OSMStop osmStop) {
+        return isRailwayStopPosition(osmStop) ? gtfsStop.railwayStopMatchedWith : gtfsStop.osmStopMatchedWith;
+    }
+
+    private static void addIfNotNull(List<StopMatchCandidate> candidates, StopMatchCandidate candidate) {
+        if (candidate != null) {
+            candidates.add(candidate);
+        }
+    }
+
+    /***
+     * Assigns the matched candidates one-to-one: the candidates are taken from a priority queue, best rule first and then
+     * closest first, and once a candidate is assigned both its GTFS stop and its OSM stop are locked, so that the other candidates
+     * of these stops are discarded. The result doesn't depend on the order of the stops lists.
+     * The GTFS stops have a separate slot for the tram stop positions, see GTFSStop.railwayStopMatchedWith
+     */
+    private void resolveCandidates(List<StopMatchCandidate> candidates) {
+        PriorityQueue<StopMatchCandidate> matchedCandidates = new PriorityQueue<>(Math.max(candidates.size(), 1), MATCH_CANDIDATES_COMPARATOR);
+
+        for (StopMatchCandidate candidate : candidates) {
+            candidate.printMessage();
+
+            if (candidate.rule != null) {
+                matchedCandidates.add(candidate);
+            }
+        }
+
+        while (!matchedCandidates.isEmpty()) {
+            StopMatchCandidate candidate = matchedCandidates.poll();
+            GTFSStop gtfsStop = candidate.gtfsStop;
+            OSMStop osmStop = candidate.osmStop;
+
+            boolean isRailwayStop = isRailwayStopPosition(osmStop);
+
+            if (osmStop.gtfsStopMatchedWith != null || getMatchedSlot(gtfsStop, osmStop) != null) {
+                ImportLogger.log(MULTIPLE_MATCHES, () -> "@|yellow Multiple match: discarded the match between GTFS stop [" + gtfsStop + "] and OSM stop [" + osmStop
+                        + "] as one of them is already matched with a better candidate |@");
+
+                continue;
+            }
+
+            if (isRailwayStop) {
+                gtfsStop.railwayStopMatchedWith = osmStop;
+            } else {
+                gtfsStop.osmStopMatchedWith = osmStop;
+
+                gtfsStop.stopsMatchedWith.add(osmStop);
+                osmStop.stopsMatchedWith.add(gtfsStop);
+            }
+
+            osmStop.gtfsStopMatchedWith = gtfsStop;
+
+            if (candidate.needsPositionReview) {
+                osmStop.setNeedsPositionReview(true);
+            }
+        }
+    }
+
+    private static int countMatchedStops(List<GTFSStop> gtfsStopsList) {
+        int count = 0;
+
+        for (GTFSStop gtfsStop : gtfsStopsList) {
+            if (gtfsStop.osmStopMatchedWith != null || gtfsStop.railwayStopMatchedWith != null) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /***
+     * The only rule of the evaluate() function without a distance limit needs the same ref code, and the other rules match
+     * stops less than MAX_MATCH_DISTANCE far away, so these OSM stops together with the near ones are all the possible matches
+     * @return the OSM stops with the same ref or gtfs_id of the GTFS stop, in the same order of the OSM stops list
+     */
+    private List<OSMStop> getKeyCandidates(GTFSStop gtfsStop) {
+        Set<OSMStop> candidatesSet = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        if (gtfsStop.getCode() != null) {
+            candidatesSet.addAll(codeOSMStopsMap.getOrDefault(gtfsStop.getCode(), List.of()));
+        }
+
+        if (gtfsStop.getGtfsId() != null) {
+            candidatesSet.addAll(gtfsIdOSMStopsMap.getOrDefault(gtfsStop.getGtfsId(), List.of()));
+        }
+
+        List<OSMStop> candidates = new ArrayList<>(candidatesSet);
+        osmStopsSpatialIndex.sortByListOrder(candidates);
+
+        return candidates;
+    }
+
+    /***
+     * Checks the matching rules without changing the stops, so that it can be run in parallel
+     * @param distanceBetween the distance between the stops computed by StopsDistanceUtils.thresholdDistance(), only compared with the thresholds of the rules
+     * @return the result of the rules, or null if the stops don't match and there is nothing to report
+     */
+    private StopMatchCandidate evaluate(GTFSStop gtfsStop, OSMStop osmStop, double distanceBetween) {
+        int maxDist = 100;
 
         if (osmStop.getCode() != null && osmStop.getCode().equals(gtfsStop.getCode())) {
 
@@ -112,47 +402,37 @@ public class MatchUtils {
                 // AND the OSM stop is already revised
                 // (if it has the tag that this tool creates during the import, because if the stop was already checked by a real person we know this is probably the real position of the stop.
                 // In other cases the stops can be gtfs-is-matched but the position could have been changed)
-                return true;
-            } else if (distanceBetween < 2000 && osmStop.getOperator() != null) {//if the operator is null and that stop is too distant then it could be of another bus company/operator. so we consider it as not matched (and we will need to remove it from any list later)
-                System.out.println(ansi().render("@|yellow Stop match: found too distant osm and gtfs stops / |@" + debugData));
-
-
+                return new StopMatchCandidate(gtfsStop, osmStop, MatchRule.SAME_REF, null, false);
+            } else if (distanceBetween < MAX_MATCH_DISTANCE && osmStop.getOperator() != null) {//if the operator is null and that stop is too distant then it could be of another bus company/operator. so we consider it as not matched (and we will need to remove it from any list later)
                 //FIXME: we should remove this check and instead decide what to do with the stop positions that are associated to the physical stops (like move them or what during the stop gui review??)
-                if (osmStop.getStopType().equals(OSMStopType.PHYSICAL_BUS_STOP) || osmStop.getStopType().equals(OSMStopType.PHYSICAL_TRAM_STOP)) {
-                    osmStop.setNeedsPositionReview(true); //the position of the osm stop needs to be reviewed as it most probably may have changed
-                }
+                //the position of the osm stop needs to be reviewed as it most probably may have changed
+                boolean needsPositionReview = osmStop.getStopType().equals(OSMStopType.PHYSICAL_BUS_STOP) || osmStop.getStopType().equals(OSMStopType.PHYSICAL_TRAM_STOP);
 
-                return true;
+                return new StopMatchCandidate(gtfsStop, osmStop, MatchRule.SAME_REF_DISTANT, "@|yellow Stop match: found too distant osm and gtfs stops / |@" + getDebugData(gtfsStop, osmStop, distanceBetween), needsPositionReview);
             }
 
         } else if (distanceBetween < 30 && osmStop.getGtfsId() != null && gtfsStop.getGtfsId() != null && osmStop.getGtfsId().equals(gtfsStop.getGtfsId())) {
             //if the stops have different ref tag code, same gtfs_id and are less than 15m far away
-            System.out.println(ansi().render("@|yellow Warning: Stops with different ref-code tag but equal gtfs_id matched / |@" + debugData));
-
-            return true;
+            return new StopMatchCandidate(gtfsStop, osmStop, MatchRule.SAME_GTFS_ID, "@|yellow Warning: Stops with different ref-code tag but equal gtfs_id matched / |@" + getDebugData(gtfsStop, osmStop, distanceBetween), false);
 
         } else if (((gtfsStop.getStopType().equals(OSMStopType.PHYSICAL_SUBWAY_STOP) && osmStop.getStopType().equals(OSMStopType.PHYSICAL_SUBWAY_STOP))
                 || (gtfsStop.getStopType().equals(OSMStopType.PHYSICAL_TRAIN_STATION) && osmStop.getStopType().equals(OSMStopType.PHYSICAL_TRAIN_STATION)))
-                && distanceBetween < 200 && StringUtils.containsIgnoreCase(VariousUtils.removeAccents(osmStop.getName()), GTFSImportSettings.getInstance().getPlugin().fixBusStopName(gtfsStop))) {
+                && distanceBetween < 200 && StringUtils.containsIgnoreCase(osmStop.getAccentFreeName(), gtfsStop.getFixedName())) {
             //for subway and train stations we consider the stops matched if they are less than 200m far away and have the same name
 
-            System.out.println(ansi().render("@|yellow Warning: Metro/train stop matched only with name / |@" + debugData));
-
-            return true;
+            return new StopMatchCandidate(gtfsStop, osmStop, MatchRule.SAME_NAME, "@|yellow Warning: Metro/train stop matched only with name / |@" + getDebugData(gtfsStop, osmStop, distanceBetween), false);
 
         } else if (osmStop.getGtfsId() == null && osmStop.getCode() == null
                 && (osmStop.getStopType().equals(OSMStopType.PHYSICAL_BUS_STOP) || osmStop.getStopType().equals(OSMStopType.PHYSICAL_TRAM_STOP))
                 && (gtfsStop.getStopType().equals(OSMStopType.PHYSICAL_BUS_STOP) || gtfsStop.getStopType().equals(OSMStopType.PHYSICAL_TRAM_STOP))
-                && distanceBetween < 50 && StringUtils.equalsIgnoreCase(VariousUtils.removeAccents(osmStop.getName()), GTFSImportSettings.getInstance().getPlugin().fixBusStopName(gtfsStop))) {
+                && distanceBetween < 50 && StringUtils.equalsIgnoreCase(osmStop.getAccentFreeName(), gtfsStop.getFixedName())) {
             //remove accents from the osm stop name and try matching it with the gtfs stop name (some GTFS stops have accents, some don't)
 
             //check if in the range of 50m there is another stop with the same name
-            var nearbyStops = StopsUtils.getNearbyStops(osmStop, 50, this.globalOsmStopsList);
+            var nearbyStops = osmStopsSpatialIndex.getNearbyStops(osmStop, 50);
 
             if (isAmbiguousNearbyStopPresent(nearbyStops, osmStop)) {
-                System.out.println(ansi().render("@|yellow Warning: Stops with same name not matched as nearby stops have that name also / |@" + debugData));
-
-                return false;
+                return new StopMatchCandidate(gtfsStop, osmStop, null, "@|yellow Warning: Stops with same name not matched as nearby stops have that name also / |@" + getDebugData(gtfsStop, osmStop, distanceBetween), false);
             }else if (nearbyStops.size() >= 1) {//this means that there are other stops with data that *could* correspond to gtfs data
 
                 for (OSMStop nearbyStop : nearbyStops) {
@@ -161,31 +441,34 @@ public class MatchUtils {
                         //if a nearby stop has the same gtfs_id or code of GTFS data then we don't match the current main-loop osmstop
 
                         //TODO: consider uncommenting this output only when inverting the loop gtfs/osm up there
-                        //System.out.println(ansi().render("@|yellow Warning: Stops with same name not matched as nearby stops have that name also / |@" + debugData));
+                        //System.out.println(ansi().render("@|yellow Warning: Stops with same name not matched as nearby stops have that name also / |@" + getDebugData(gtfsStop, osmStop, distanceBetween)));
 
-                        return false;
+                        return null;
                     }
                 }
 
-                System.out.println(ansi().render("@|yellow Warning: Stops with same name matched / |@" + debugData));
-
-                return true;
+                return new StopMatchCandidate(gtfsStop, osmStop, MatchRule.SAME_NAME, "@|yellow Warning: Stops with same name matched / |@" + getDebugData(gtfsStop, osmStop, distanceBetween), false);
             }
 
 
         }
 
-        return false;
+        return null;
     }
 
 
 
+    //built only for the candidates with a message, not for every evaluated pair of stops
+    private static String getDebugData(GTFSStop gtfsStop, OSMStop osmStop, double distanceBetween) {
+        return "GTFS Stop data: [" + gtfsStop + "] -> OSM Stop data: [" + osmStop + "], distance between: " + distanceBetween + " m";
+    }
+
     public boolean isAmbiguousNearbyStopPresent(List<OSMStop> nearbyStops, OSMStop mainOsmStop) {
 
         for (OSMStop nearbyStop : nearbyStops) {
             if (nearbyStop.getGtfsId() == null && nearbyStop.getCode() == null
                     && (nearbyStop.getStopType().equals(OSMStopType.PHYSICAL_BUS_STOP) || nearbyStop.getStopType().equals(OSMStopType.PHYSICAL_TRAM_STOP))
-                    && StringUtils.equalsIgnoreCase(VariousUtils.removeAccents(nearbyStop.getName()), mainOsmStop.getName())) {
+                    && StringUtils.equalsIgnoreCase(nearbyStop.getAccentFreeName(), mainOsmStop.getName())) {
                 return true;
             }
         }
@@ -193,6 +476,60 @@ public class MatchUtils {
         return false;
     }
 
-}
+    /***
+     * The rules of evaluate() that match two stops, from the most reliable one
+     */
+    private enum MatchRule {
+        SAME_REF,
+        SAME_GTFS_ID,
+        SAME_REF_DISTANT,
+        SAME_NAME,
+        SIMILAR_NAME
+    }
+
+    /***
+     * The result of the matching rules for a GTFS stop and an OSM stop, scored by rule and distance.
+     * It only records what the rules decided, the stops are changed during the resolution
+     */
+    private static final class StopMatchCandidate {
+        private final GTFSStop gtfsStop;
+        private final OSMStop osmStop;
+        private final double distance;
+        private final MatchRule rule;
+        private final String message;
+        private final boolean needsPositionReview;
+
+        /***
+         * @param rule the rule that matched the stops, null if they don't match
+         */
+        private StopMatchCandidate(GTFSStop gtfsStop, OSMStop osmStop, MatchRule rule, String message, boolean needsPositionReview) {
+            //the exact distance, as the closest candidates win
+            this(gtfsStop, osmStop, StopsDistanceUtils.distance(gtfsStop.getGeoPosition(), osmStop.getGeoPosition()), rule, message, needsPositionReview);
+        }
 
+        private StopMatchCandidate(GTFSStop gtfsStop, OSMStop osmStop, double distance, MatchRule rule, String message, boolean needsPositionReview) {
+            this.gtfsStop = gtfsStop;
+            this.osmStop = osmStop;
+            this.distance = distance;
+            this.rule = rule;
+            this.message = message;
+            this.needsPositionReview = needsPositionReview;
+        }
 
+        private JSONObject toJSON() {
+            return new JSONObject()
+                    .put("osmId", osmStop.getOSMId())
+                    .put("distance", distance)
+                    .putOpt("rule", (rule == null) ? null : rule.name())
+                    .putOpt("message", message)
+                    .put("needsPositionReview", needsPositionReview);
+        }
+
+        private void printMessage() {
+            if (message != null) {
+                ImportLogger.log((rule == null) ? NOT_MATCHED_BY_NAME_MESSAGES : MATCH_MESSAGES_CATEGORIES.get(rule), () -> message);
+            }
+        }
+    }
+
+}
@@ -27,17 +27,13 @@ public class OSMDistanceUtils {
      * Calculates geodetic distance between two points specified by latitude/longitude using
      * Vincenty inverse formula for ellipsoids
      *
-     * @param latitude1  first point's latitude in decimal degrees
-     * @param longitude1 first point's longitude in decimal degrees
-     * @param latitude2  second point's latitude in decimal degrees
-     * @param longitude2 second point's longitude in decimal degrees
+     * @param lat1 first point's latitude in decimal degrees
+     * @param lon1 first point's longitude in decimal degrees
+     * @param lat2 second point's latitude in decimal degrees
+     * @param lon2 second point's longitude in decimal degrees
      * @return distance in metres between points
      */
-    public static double distVincenty(Double latitude1, Double longitude1, Double latitude2, Double longitude2) {
-        double lat1 = latitude1;
-        double lon1 = longitude1;
-        double lat2 = latitude2;
-        double lon2 = longitude2;
+    public static double distVincenty(double lat1, double lon1, double lat2, double lon2) {
         double a = 6378137;
         double b = 6356752.3142;
         double f = 1 / 298.257223563;  // WGS-84 ellipsoid params
@@ -0,0 +1,114 @@
+/**
+ * Licensed under the GNU General Public License version 3
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.gnu.org/licenses/gpl-3.0.html
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package it.osm.gtfs.utils;
+
+import it.osm.gtfs.enums.OSMStopType;
+import it.osm.gtfs.models.OSMStop;
+import org.jxmapviewer.viewer.GeoPosition;
+
+import java.util.*;
+
+/***
+ * A grid index of the OSM stops, partitioned by stop type, to find the stops near a position without checking all of them.
+ * The stops are always returned in the same order of the list used to create the index,
+ * so that the results of the matching don't change compared to a scan of the whole list.
+ */
+public class OSMStopsSpatialIndex {
+    private static final double CELL_SIZE_DEGREES = 0.01;
+    //a bit less than the real length of a latitude degree (110574 m at the equator), so that the search square always contains the whole radius
+    private static final double METERS_PER_LATITUDE_DEGREE = 110000;
+
+    private final Map<OSMStopType, Map<Long, List<OSMStop>>> typeCellsStopsMap = new EnumMap<>(OSMStopType.class);
+    private final Map<OSMStop, Integer> stopListIndexMap = new IdentityHashMap<>();
+
+    public OSMStopsSpatialIndex(List<OSMStop> osmStopsList) {
+        for (int i = 0; i < osmStopsList.size(); i++) {
+            OSMStop osmStop = osmStopsList.get(i);
+            stopListIndexMap.put(osmStop, i);
+
+            long cellKey = getCellKey(getCellCoordinate(osmStop.getGeoPosition().getLatitude()), getCellCoordinate(osmStop.getGeoPosition().getLongitude()));
+
+            typeCellsStopsMap.computeIfAbsent(osmStop.getStopType(), k -> new HashMap<>())
+                    .computeIfAbsent(cellKey, k -> new ArrayList<>()).add(osmStop);
+        }
+    }
+
+    /***
+     * Returns the stops inside the square of the given radius around the position, which is a superset of the stops within the radius
+     * @param stopType the type of the stops to return, null for all the types
+     */
+    public List<OSMStop> getCandidateStops(GeoPosition position, double radiusMeters, OSMStopType stopType) {
+        double latDelta = radiusMeters / METERS_PER_LATITUDE_DEGREE;
+        double lonDelta = radiusMeters / (METERS_PER_LATITUDE_DEGREE * Math.max(Math.cos(Math.toRadians(position.getLatitude())), 0.01));
+
+        double minLat = position.getLatitude() - latDelta, maxLat = position.getLatitude() + latDelta;
+        double minLon = position.getLongitude() - lonDelta, maxLon = position.getLongitude() + lonDelta;
+
+        Collection<Map<Long, List<OSMStop>>> cellsStopsMaps = (stopType == null) ? typeCellsStopsMap.values()
+                : Collections.singletonList(typeCellsStopsMap.getOrDefault(stopType, Map.of()));
+
+        List<OSMStop> result = new ArrayList<>();
+
+        for (Map<Long, List<OSMStop>> cellsStopsMap : cellsStopsMaps) {
+            for (long row = getCellCoordinate(minLat); row <= getCellCoordinate(maxLat); row++) {
+                for (long column = getCellCoordinate(minLon); column <= getCellCoordinate(maxLon); column++) {
+                    for (OSMStop osmStop : cellsStopsMap.getOrDefault(getCellKey(row, column), List.of())) {
+                        GeoPosition stopPosition = osmStop.getGeoPosition();
+
+                        if (stopPosition.getLatitude() >= minLat && stopPosition.getLatitude() <= maxLat
+                                && stopPosition.getLongitude() >= minLon && stopPosition.getLongitude() <= maxLon) {
+                            result.add(osmStop);
+                        }
+                    }
+                }
+            }
+        }
+
+        sortByListOrder(result);
+
+        return result;
+    }
+
+    /***
+     * Same as StopsUtils.getNearbyStops, but only the stops of the near cells are checked
+     * @return the stops of the same type within the radius, in the order of the list, without the first one equal
+     * to the main stop (Stop.equals: the main stop itself, or a stop with its same gtfs_id)
+     */
+    public List<OSMStop> getNearbyStops(OSMStop mainOsmStop, double radius) {
+        List<OSMStop> result = new ArrayList<>();
+
+        for (OSMStop currentLoopStop : getCandidateStops(mainOsmStop.getGeoPosition(), radius, mainOsmStop.getStopType())) {
+            if (StopsDistanceUtils.isWithin(mainOsmStop.getGeoPosition(), currentLoopStop.getGeoPosition(), radius)) {
+                result.add(currentLoopStop);
+            }
+        }
+
+        //remove the main stop from the list, like StopsUtils.getNearbyStops does
+        result.remove(mainOsmStop);
+
+        return result;
+    }
+
+    public void sortByListOrder(List<OSMStop> osmStops) {
+        osmStops.sort(Comparator.comparingInt(stopListIndexMap::get));
+    }
+
+    private static long getCellCoordinate(double degrees) {
+        return (long) Math.floor(degrees / CELL_SIZE_DEGREES);
+    }
+
+    private static long getCellKey(long row, long column) {
+        return (row << 32) | (column & 0xffffffffL);
+    }
+}
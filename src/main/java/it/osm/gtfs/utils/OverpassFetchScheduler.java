@@ -0,0 +1,165 @@
+/**
+ * Licensed under the GNU General Public License version 3
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.gnu.org/licenses/gpl-3.0.html
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package it.osm.gtfs.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import static org.fusesource.jansi.Ansi.ansi;
+
+/***
+ * This class runs independent Overpass queries concurrently, limiting the number of parallel requests
+ * and the request rate for every server, and backing off when a server answers that it is busy
+ */
+public class OverpassFetchScheduler implements AutoCloseable {
+    private static final int MAX_BUSY_RETRIES = 5;
+    private static final long BASE_BACKOFF_MILLIS = 5000;
+
+    private final int maxConcurrentRequests;
+    private final long requestIntervalMillis;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Map<String, ServerSlot> serverSlots = new HashMap<>();
+
+    public OverpassFetchScheduler(int maxConcurrentRequests, long requestIntervalMillis) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.requestIntervalMillis = requestIntervalMillis;
+    }
+
+    public static OverpassFetchScheduler fromSettings() {
+        return new OverpassFetchScheduler(GTFSImportSettings.getInstance().getOverpassMaxConcurrentRequests(),
+                GTFSImportSettings.getInstance().getOverpassRequestIntervalMillis());
+    }
+
+    /***
+     * Queues the download of the url to the destination file
+     * @return a future that completes with the destination file once the download is done
+     */
+    public Future<File> submit(String url, File destination, boolean useGzipCompression) {
+        ServerSlot serverSlot = getServerSlot(url);
+
+        return executor.submit(() -> {
+            serverSlot.permits.acquire();
+
+            try {
+                int busyRetries = 0;
+
+                while (true) {
+                    serverSlot.waitForTurn();
+
+                    try {
+                        DownloadUtils.download(url, destination, useGzipCompression);
+                        return destination;
+                    } catch (DownloadUtils.ServerBusyException e) {
+                        if (++busyRetries > MAX_BUSY_RETRIES) {
+                            throw e;
+                        }
+
+                        //we honor the Retry-After header if present, otherwise we double the wait time at every retry
+                        long backoffMillis = (e.getRetryAfterSeconds() > 0) ? e.getRetryAfterSeconds() * 1000L : BASE_BACKOFF_MILLIS << (busyRetries - 1);
+
+                        System.out.println(ansi().render("@|yellow Overpass server busy (HTTP " + e.getResponseCode() + "), retrying in " + backoffMillis / 1000 + " s (retry " + busyRetries + "/" + MAX_BUSY_RETRIES + ")... |@"));
+                        serverSlot.backoff(backoffMillis);
+                    }
+                }
+            } finally {
+                serverSlot.permits.release();
+            }
+        });
+    }
+
+    /***
+     * Runs a task that coordinates other downloads (like a tiled fetch) in background
+     */
+    public Future<File> submitTask(Callable<File> task) {
+        return executor.submit(task);
+    }
+
+    /***
+     * Waits for the download to complete
+     * @return the downloaded file
+     */
+    public File await(Future<File> download) throws IOException, InterruptedException {
+        try {
+            return download.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+
+            throw new IOException("Overpass download failed", e.getCause());
+        }
+    }
+
+    /***
+     * Waits for all the downloads to complete
+     * @return the downloaded files, in the same order of the downloads list
+     */
+    public List<File> awaitAll(Collection<Future<File>> downloads) throws IOException, InterruptedException {
+        List<File> result = new ArrayList<>();
+
+        for (Future<File> download : downloads) {
+            result.add(await(download));
+        }
+
+        return result;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private synchronized ServerSlot getServerSlot(String url) {
+        String host;
+
+        try {
+            host = new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            host = url;
+        }
+
+        return serverSlots.computeIfAbsent(host, k -> new ServerSlot());
+    }
+
+    private class ServerSlot {
+        private final Semaphore permits = new Semaphore(maxConcurrentRequests);
+        private long nextRequestTime = 0;
+
+        //blocks until the server can receive a new request and reserves the time slot for it
+        private synchronized void waitForTurn() throws InterruptedException {
+            long now = System.currentTimeMillis();
+
+            while (now < nextRequestTime) {
+                wait(nextRequestTime - now);
+                now = System.currentTimeMillis();
+            }
+
+            nextRequestTime = now + requestIntervalMillis;
+        }
+
+        //delays every next request to this server
+        private synchronized void backoff(long backoffMillis) {
+            nextRequestTime = Math.max(nextRequestTime, System.currentTimeMillis() + backoffMillis);
+            notifyAll();
+        }
+    }
+}
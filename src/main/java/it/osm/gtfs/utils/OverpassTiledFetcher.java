@@ -0,0 +1,422 @@
+/**
+ * Licensed under the GNU General Public License version 3
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.gnu.org/licenses/gpl-3.0.html
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package it.osm.gtfs.utils;
+
+import it.osm.gtfs.input.OsmChangeApplier;
+import it.osm.gtfs.models.BoundingBox;
+import it.osm.gtfs.models.ShapeCorridor;
+import org.apache.commons.httpclient.util.URIUtil;
+
+import javax.xml.stream.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Future;
+
+import static org.fusesource.jansi.Ansi.ansi;
+
+/***
+ * This class downloads an Overpass query over a large area by splitting the area into a grid of tiles.
+ * Every tile is downloaded, retried and cached on its own, the tiles that are too big get split into smaller ones,
+ * and at the end all the tiles are merged into a single OSM file without duplicated elements.
+ * When a shapes corridor is given, only the tiles crossing it are downloaded and only the ways inside it are kept.
+ */
+public class OverpassTiledFetcher {
+    private static final String[] OSM_ELEMENT_TYPES = new String[]{"node", "way", "relation"};
+
+    private final OverpassFetchScheduler fetchScheduler;
+    private final String overpassApiServer;
+    private final File tilesDirectory;
+    private final double tileSizeDegrees;
+    private final double minTileSizeDegrees;
+    private final long maxTileBytes;
+    private final long cacheMaxAgeMillis;
+    private final long filesMaxAgeMillis;
+
+    /***
+     * @param cacheMaxAgeMillis the tiles older than this are downloaded again
+     * @param filesMaxAgeMillis the tiles and the split markers not used for this time are deleted
+     */
+    public OverpassTiledFetcher(OverpassFetchScheduler fetchScheduler, String overpassApiServer, File tilesDirectory,
+                                double tileSizeDegrees, long maxTileBytes, long cacheMaxAgeMillis, long filesMaxAgeMillis) {
+        this.fetchScheduler = fetchScheduler;
+        this.overpassApiServer = overpassApiServer;
+        this.tilesDirectory = tilesDirectory;
+        this.tileSizeDegrees = tileSizeDegrees;
+        this.minTileSizeDegrees = tileSizeDegrees / 16;
+        this.maxTileBytes = maxTileBytes;
+        this.cacheMaxAgeMillis = cacheMaxAgeMillis;
+        this.filesMaxAgeMillis = filesMaxAgeMillis;
+    }
+
+    public static OverpassTiledFetcher fromSettings(OverpassFetchScheduler fetchScheduler) {
+        GTFSImportSettings settings = GTFSImportSettings.getInstance();
+
+        return new OverpassTiledFetcher(fetchScheduler, settings.getOverpassApiServer(), new File(settings.getOsmWayTilesPath()),
+                settings.getOverpassTileSizeDegrees(), settings.getOverpassMaxTileSizeMB() * 1024L * 1024L,
+                settings.getOverpassTileCacheMaxAgeHours() * 3600000L, settings.getCacheMaxAgeDays() * 24L * 3600000L);
+    }
+
+    /***
+     * Starts the tiled download in background
+     * @param query the Overpass query (without the bbox part) like "(way[highway];>;);out body;"
+     * @param regions the areas to download, the tiles shared by more regions are downloaded only once
+     * @param corridor the area around the shapes where the ways are needed, or null to keep all the ways of the regions
+     * @return a future that completes with the merged output file
+     */
+    public Future<File> fetchAsync(String query, Collection<BoundingBox> regions, ShapeCorridor corridor, File output) {
+        return fetchScheduler.submitTask(() -> fetch(query, regions, corridor, output));
+    }
+
+    public File fetch(String query, Collection<BoundingBox> regions, ShapeCorridor corridor, File output) throws IOException, InterruptedException {
+        tilesDirectory.mkdirs();
+        deleteExpiredFiles();
+
+        //the tiles are snapped to the same grid, so the overlapping regions have tiles with the same coordinates
+        Map<String, BoundingBox> regionsTiles = new LinkedHashMap<>();
+        for (BoundingBox region : regions) {
+            for (BoundingBox tile : region.getTiles(tileSizeDegrees)) {
+                if (corridor == null || corridor.intersects(tile)) {
+                    regionsTiles.putIfAbsent(tile.getAPIQuery(), tile);
+                }
+            }
+        }
+
+        //the tiles queue, the downloads of every tile are started right away so that they run in parallel
+        Deque<PendingTile> pendingTiles = new ArrayDeque<>();
+        for (BoundingBox tile : regionsTiles.values()) {
+            pendingTiles.add(startTile(query, tile, corridor));
+        }
+
+        System.out.println(ansi().render("@|yellow Downloading " + pendingTiles.size() + " tiles of " + tileSizeDegrees + "° for " + regions.size() + " regions... |@"));
+
+        List<File> completedTiles = new ArrayList<>();
+        //the complete tiles that will be replaced by their quadrants from the next download
+        List<File> supersededTiles = new ArrayList<>();
+        int cachedTiles = 0, splitTiles = 0;
+
+        while (!pendingTiles.isEmpty()) {
+            PendingTile pendingTile = pendingTiles.poll();
+
+            if (pendingTile.subTiles != null) {
+                //this tile was split during a previous run, we download its sub tiles instead
+                pendingTiles.addAll(pendingTile.subTiles);
+                continue;
+            }
+
+            //the network and server errors are thrown after the retries of the scheduler: smaller tiles wouldn't fail any less
+            fetchScheduler.await(pendingTile.download);
+
+            if (pendingTile.cached) {
+                cachedTiles++;
+            }
+
+            if (isIncompleteTile(pendingTile.file)) {
+                deleteTileFiles(pendingTile.file);
+
+                if (pendingTile.tile.getWidthDegrees() / 2 < minTileSizeDegrees) {
+                    throw new IOException("The tile " + pendingTile.tile + " is incomplete even at the minimum tile size");
+                }
+
+                //the server couldn't answer for the whole tile (timeout or too much data), so we ask for its quadrants
+                System.out.println(ansi().render("@|yellow Tile " + pendingTile.tile + " incomplete, splitting it into smaller tiles... |@"));
+                markSplit(query, pendingTile.tile);
+                splitTiles++;
+
+                for (BoundingBox quadrant : pendingTile.tile.getQuadrants()) {
+                    if (corridor == null || corridor.intersects(quadrant)) {
+                        pendingTiles.add(startTile(query, quadrant, corridor));
+                    }
+                }
+
+                continue;
+            }
+
+            if (pendingTile.file.length() > maxTileBytes && pendingTile.tile.getWidthDegrees() / 2 >= minTileSizeDegrees) {
+                //the data is complete, but we remember to use smaller tiles for this dense area on the next downloads
+                markSplit(query, pendingTile.tile);
+                splitTiles++;
+                supersededTiles.add(pendingTile.file);
+            }
+
+            completedTiles.add(pendingTile.file);
+        }
+
+        System.out.println(ansi().render("@|green Downloaded " + completedTiles.size() + " tiles (" + cachedTiles + " from cache, " + splitTiles + " split), merging them... |@"));
+
+        mergeTiles(completedTiles, corridor, output);
+        //the next incremental update of the ways starts from the changes after the oldest tile
+        OsmChangeApplier.writeDownloadState(output, completedTiles);
+
+        for (File supersededTile : supersededTiles) {
+            deleteTileFiles(supersededTile);
+        }
+
+        return output;
+    }
+
+    private PendingTile startTile(String query, BoundingBox tile, ShapeCorridor corridor) throws IOException {
+        PendingTile pendingTile = new PendingTile(tile, getTileFile(query, tile, ".osm"));
+
+        File splitMarker = getTileFile(query, tile, ".split");
+
+        if (splitMarker.exists()) {
+            //the marker is kept while it's used, and the data of the whole tile isn't needed anymore
+            splitMarker.setLastModified(System.currentTimeMillis());
+            deleteTileFiles(pendingTile.file);
+
+            pendingTile.subTiles = new ArrayList<>();
+
+            for (BoundingBox quadrant : tile.getQuadrants()) {
+                if (corridor == null || corridor.intersects(quadrant)) {
+                    pendingTile.subTiles.add(startTile(query, quadrant, corridor));
+                }
+            }
+
+            return pendingTile;
+        }
+
+        boolean isCacheValid = pendingTile.file.exists() && System.currentTimeMillis() - pendingTile.file.lastModified() < cacheMaxAgeMillis;
+
+        if (isCacheValid) {
+            pendingTile.cached = true;
+            pendingTile.download = fetchScheduler.submitTask(() -> pendingTile.file);
+        } else {
+            String queryUrl = "?data=[bbox];" + query + "&bbox=" + tile.getAPIQuery();
+            pendingTile.download = fetchScheduler.submit(overpassApiServer + URIUtil.encodeQuery(queryUrl), pendingTile.file, true);
+        }
+
+        return pendingTile;
+    }
+
+    private void markSplit(String query, BoundingBox tile) throws IOException {
+        getTileFile(query, tile, ".split").createNewFile();
+    }
+
+    //deletes the tile with the files the downloads keep next to it (like the validators of the conditional requests)
+    private void deleteTileFiles(File tileFile) {
+        File[] files = tilesDirectory.listFiles((dir, name) -> name.equals(tileFile.getName()) || name.startsWith(tileFile.getName() + "."));
+
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    //the tiles and split markers of the areas and queries that are not downloaded anymore would otherwise stay in the directory forever
+    private void deleteExpiredFiles() {
+        long now = System.currentTimeMillis();
+        File[] expiredFiles = tilesDirectory.listFiles((dir, name) -> name.startsWith("tile_") && now - new File(dir, name).lastModified() > filesMaxAgeMillis);
+
+        if (expiredFiles != null) {
+            for (File file : expiredFiles) {
+                file.delete();
+            }
+        }
+    }
+
+    private File getTileFile(String query, BoundingBox tile, String extension) {
+        return new File(tilesDirectory, "tile_" + Integer.toHexString(query.hashCode()) + "_" + tile.getAPIQuery().replace(",", "_") + extension);
+    }
+
+    /***
+     * Overpass can answer with a valid but truncated XML file with a runtime error remark (usually a timeout or a memory limit)
+     */
+    private static boolean isIncompleteTile(File tileFile) {
+        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(tileFile))) {
+            XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(inputStream);
+
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("remark")
+                            && reader.getElementText().contains("error")) {
+                        return true;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+
+            return false;
+        } catch (IOException | XMLStreamException e) {
+            return true;
+        }
+    }
+
+    /***
+     * Merges the OSM files writing every element only once, with all the nodes first, then the ways and the relations
+     */
+    private static void mergeTiles(List<File> tileFiles, ShapeCorridor corridor, File output) throws IOException {
+        try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(output))) {
+            //null means that all the elements of that type are kept
+            Set<Long> keptNodeIds = null;
+            Set<Long> keptWayIds = null;
+
+            if (corridor != null) {
+                keptWayIds = new HashSet<>();
+                keptNodeIds = getCorridorWaysNodes(tileFiles, corridor, keptWayIds);
+            }
+
+            XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(outputStream, StandardCharsets.UTF_8.name());
+
+            writer.writeStartDocument(StandardCharsets.UTF_8.name(), "1.0");
+            writer.writeStartElement("osm");
+            writer.writeAttribute("version", "0.6");
+            writer.writeAttribute("generator", "GTFSOSMImport");
+
+            for (String elementType : OSM_ELEMENT_TYPES) {
+                Set<Long> keptIds = switch (elementType) {
+                    case "node" -> keptNodeIds;
+                    case "way" -> keptWayIds;
+                    default -> null;
+                };
+
+                Set<Long> writtenIds = new HashSet<>();
+
+                for (File tileFile : tileFiles) {
+                    try (InputStream inputStream = new BufferedInputStream(new FileInputStream(tileFile))) {
+                        XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(inputStream);
+
+                        while (reader.hasNext()) {
+                            if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals(elementType)) {
+                                long id = Long.parseLong(reader.getAttributeValue(null, "id"));
+
+                                if ((keptIds == null || keptIds.contains(id)) && writtenIds.add(id)) {
+                                    copyElement(reader, writer);
+                                } else {
+                                    skipElement(reader);
+                                }
+                            }
+                        }
+
+                        reader.close();
+                    }
+                }
+            }
+
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Couldn't merge the downloaded tiles", e);
+        }
+    }
+
+    /***
+     * Finds the ways with at least one node inside the corridor
+     * @param corridorWayIds the set where the ids of the found ways are added
+     * @return the ids of all the nodes of the found ways (also the ones outside the corridor, so that the ways stay complete)
+     */
+    private static Set<Long> getCorridorWaysNodes(List<File> tileFiles, ShapeCorridor corridor, Set<Long> corridorWayIds) throws IOException, XMLStreamException {
+        Set<Long> corridorNodeIds = new HashSet<>();
+
+        for (File tileFile : tileFiles) {
+            try (InputStream inputStream = new BufferedInputStream(new FileInputStream(tileFile))) {
+                XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(inputStream);
+
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("node")
+                            && corridor.contains(Double.parseDouble(reader.getAttributeValue(null, "lat")), Double.parseDouble(reader.getAttributeValue(null, "lon")))) {
+                        corridorNodeIds.add(Long.parseLong(reader.getAttributeValue(null, "id")));
+                    }
+                }
+
+                reader.close();
+            }
+        }
+
+        Set<Long> waysNodeIds = new HashSet<>();
+
+        for (File tileFile : tileFiles) {
+            try (InputStream inputStream = new BufferedInputStream(new FileInputStream(tileFile))) {
+                XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(inputStream);
+
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("way")) {
+                        long wayId = Long.parseLong(reader.getAttributeValue(null, "id"));
+                        List<Long> wayNodeIds = new ArrayList<>();
+
+                        //we read the node refs until the end of the way element
+                        while (!(reader.next() == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("way"))) {
+                            if (reader.getEventType() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("nd")) {
+                                wayNodeIds.add(Long.parseLong(reader.getAttributeValue(null, "ref")));
+                            }
+                        }
+
+                        if (wayNodeIds.stream().anyMatch(corridorNodeIds::contains)) {
+                            corridorWayIds.add(wayId);
+                            waysNodeIds.addAll(wayNodeIds);
+                        }
+                    }
+                }
+
+                reader.close();
+            }
+        }
+
+        return waysNodeIds;
+    }
+
+    //copies the current element with its attributes and its children elements (like tags and node refs)
+    private static void copyElement(XMLStreamReader reader, XMLStreamWriter writer) throws XMLStreamException {
+        int depth = 0;
+
+        do {
+            if (reader.getEventType() == XMLStreamConstants.START_ELEMENT) {
+                writer.writeStartElement(reader.getLocalName());
+
+                for (int i = 0; i < reader.getAttributeCount(); i++) {
+                    writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                }
+
+                depth++;
+            } else if (reader.getEventType() == XMLStreamConstants.END_ELEMENT) {
+                writer.writeEndElement();
+                depth--;
+            }
+
+            if (depth > 0) {
+                reader.next();
+            }
+        } while (depth > 0);
+    }
+
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+
+        while (depth > 0) {
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static class PendingTile {
+        private final BoundingBox tile;
+        private final File file;
+        private Future<File> download;
+        private List<PendingTile> subTiles;
+        private boolean cached = false;
+
+        private PendingTile(BoundingBox tile, File file) {
+            this.tile = tile;
+            this.file = file;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * Licensed under the GNU General Public License version 3
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.gnu.org/licenses/gpl-3.0.html
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package it.osm.gtfs.utils;
+
+import it.osm.gtfs.models.GTFSStop;
+
+import java.util.*;
+
+/***
+ * This class groups the GTFS stops that belong to the same stop area: the stops with the same parent_station,
+ * and for the stops without it the clusters found by a density-based clustering (DBSCAN) of the stops with the same name
+ */
+public class StopAreasUtils {
+    //a bit less than the real length of a latitude degree, so that the near cells always contain the whole radius
+    private static final double METERS_PER_LATITUDE_DEGREE = 110000;
+
+    /***
+     * @param radius the maximum distance in meters between two neighbour stops of the same area
+     * @param minStops the minimum number of stops (itself included) within the radius of a stop to expand its area, as in DBSCAN
+     * @return the stops of every area in the order of the stops list, the stops that don't belong to any area are not returned
+     */
+    public static List<List<GTFSStop>> getStopAreas(List<GTFSStop> gtfsStopsList, double radius, int minStops) {
+        List<List<GTFSStop>> result = new ArrayList<>();
+
+        Map<String, List<GTFSStop>> parentStationStopsMap = new LinkedHashMap<>();
+        List<GTFSStop> stopsWithoutParent = new ArrayList<>();
+
+        for (GTFSStop gtfsStop : gtfsStopsList) {
+            if (gtfsStop.getParentStation() != null) {
+                parentStationStopsMap.computeIfAbsent(gtfsStop.getParentStation(), k -> new ArrayList<>()).add(gtfsStop);
+            } else {
+                stopsWithoutParent.add(gtfsStop);
+            }
+        }
+
+        result.addAll(parentStationStopsMap.values());
+        result.addAll(getClusters(stopsWithoutParent, radius, minStops));
+
+        return result;
+    }
+
+    /***
+     * DBSCAN over a grid index with cells as big as the radius, so that the neighbours of a stop are always in the 3x3 near cells.
+     * Two stops are neighbours if they are within the radius and have the same name, as the stops of the two sides
+     * of a road usually have the same name while the near stops with a different name are different stop areas
+     */
+    private static List<List<GTFSStop>> getClusters(List<GTFSStop> gtfsStops, double radius, int minStops) {
+        if (gtfsStops.isEmpty()) {
+            return List.of();
+        }
+
+        double maxAbsLatitude = 0;
+        for (GTFSStop gtfsStop : gtfsStops) {
+            maxAbsLatitude = Math.max(maxAbsLatitude, Math.abs(gtfsStop.getGeoPosition().getLatitude()));
+        }
+
+        double cellLat = radius / METERS_PER_LATITUDE_DEGREE;
+        //the cosine of the farthest latitude from the equator is the smallest one, so the cells are wide enough for all the stops
+        double cellLon = cellLat / Math.max(Math.cos(Math.toRadians(maxAbsLatitude)), 0.01);
+
+        Map<Long, List<Integer>> cellStopsIndexesMap = new HashMap<>();
+        //the names are normalized once, as every stop is compared with all its near stops
+        String[] nameKeys = new String[gtfsStops.size()];
+
+        for (int i = 0; i < gtfsStops.size(); i++) {
+            cellStopsIndexesMap.computeIfAbsent(getCellKey(gtfsStops.get(i), cellLat, cellLon), k -> new ArrayList<>()).add(i);
+
+            String fixedName = gtfsStops.get(i).getFixedName();
+            nameKeys[i] = (fixedName == null) ? null : VariousUtils.removeAccents(fixedName).toLowerCase(Locale.ROOT);
+        }
+
+        final int noise = -1, unvisited = 0;
+        int[] stopsClusters = new int[gtfsStops.size()];
+        int clustersCount = 0;
+
+        for (int i = 0; i < gtfsStops.size(); i++) {
+            if (stopsClusters[i] != unvisited) {
+                continue;
+            }
+
+            List<Integer> neighbours = getNeighbours(gtfsStops, nameKeys, i, radius, cellLat, cellLon, cellStopsIndexesMap);
+
+            if (neighbours.size() + 1 < minStops) {
+                stopsClusters[i] = noise;
+                continue;
+            }
+
+            int cluster = ++clustersCount;
+            stopsClusters[i] = cluster;
+
+            Deque<Integer> queue = new ArrayDeque<>(neighbours);
+
+            while (!queue.isEmpty()) {
+                int j = queue.poll();
+
+                if (stopsClusters[j] == noise) {
+                    //a border stop, it joins the area but its neighbours are not expanded
+                    stopsClusters[j] = cluster;
+                }
+
+                if (stopsClusters[j] != unvisited) {
+                    continue;
+                }
+
+                stopsClusters[j] = cluster;
+
+                List<Integer> stopNeighbours = getNeighbours(gtfsStops, nameKeys, j, radius, cellLat, cellLon, cellStopsIndexesMap);
+
+                if (stopNeighbours.size() + 1 >= minStops) {
+                    queue.addAll(stopNeighbours);
+                }
+            }
+        }
+
+        List<List<GTFSStop>> clusters = new ArrayList<>();
+        for (int i = 0; i < clustersCount; i++) {
+            clusters.add(new ArrayList<>());
+        }
+
+        for (int i = 0; i < gtfsStops.size(); i++) {
+            if (stopsClusters[i] > 0) {
+                clusters.get(stopsClusters[i] - 1).add(gtfsStops.get(i));
+            }
+        }
+
+        return clusters;
+    }
+
+    private static List<Integer> getNeighbours(List<GTFSStop> gtfsStops, String[] nameKeys, int stopIndex, double radius, double cellLat, double cellLon, Map<Long, List<Integer>> cellStopsIndexesMap) {
+        GTFSStop gtfsStop = gtfsStops.get(stopIndex);
+        long row = (long) Math.floor(gtfsStop.getGeoPosition().getLatitude() / cellLat);
+        long column = (long) Math.floor(gtfsStop.getGeoPosition().getLongitude() / cellLon);
+
+        List<Integer> result = new ArrayList<>();
+
+        for (long r = row - 1; r <= row + 1; r++) {
+            for (long c = column - 1; c <= column + 1; c++) {
+                for (int otherStopIndex : cellStopsIndexesMap.getOrDefault((r << 32) | (c & 0xffffffffL), List.of())) {
+                    GTFSStop otherStop = gtfsStops.get(otherStopIndex);
+
+                    if (otherStopIndex != stopIndex && nameKeys[stopIndex] != null && nameKeys[stopIndex].equals(nameKeys[otherStopIndex])
+                            && StopsDistanceUtils.isWithin(gtfsStop.getGeoPosition(), otherStop.getGeoPosition(), radius)) {
+                        result.add(otherStopIndex);
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private static long getCellKey(GTFSStop gtfsStop, double cellLat, double cellLon) {
+        long row = (long) Math.floor(gtfsStop.getGeoPosition().getLatitude() / cellLat);
+        long column = (long) Math.floor(gtfsStop.getGeoPosition().getLongitude() / cellLon);
+
+        return (row << 32) | (column & 0xffffffffL);
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Licensed under the GNU General Public License version 3
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.gnu.org/licenses/gpl-3.0.html
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package it.osm.gtfs.utils;
+
+import it.osm.gtfs.models.OSMStop;
+import org.jxmapviewer.viewer.GeoPosition;
+
+import java.util.*;
+
+/***
+ * The trigrams of the normalized names of the OSM stops, to find the stops with a similar name (like "P.za Castello" and "Piazza Castello").
+ * Only the stops near the position, taken from the spatial index, are compared with the name, so the cost of a search
+ * doesn't depend on how common the trigrams of the name are in the whole area.
+ * The similarity is the Jaccard index of the trigram sets of the two names, from 0 (nothing in common) to 1 (same trigrams).
+ */
+public class StopNamesTrigramIndex {
+    private final OSMStopsSpatialIndex osmStopsSpatialIndex;
+    private final Map<OSMStop, Set<String>> stopTrigramsMap = new IdentityHashMap<>();
+
+    public StopNamesTrigramIndex(List<OSMStop> osmStopsList, OSMStopsSpatialIndex osmStopsSpatialIndex) {
+        this.osmStopsSpatialIndex = osmStopsSpatialIndex;
+
+        for (OSMStop osmStop : osmStopsList) {
+            stopTrigramsMap.put(osmStop, getTrigrams(osmStop.getAccentFreeName()));
+        }
+    }
+
+    /***
+     * Returns the stops less than the radius far away with a name similar to the given one
+     * @param minSimilarity the minimum similarity of the returned stops, greater than 0
+     * @return the similar stops, from the most similar one, the stops with the same similarity are in the order of the OSM stops list
+     */
+    public List<SimilarStop> getSimilarStops(String name, GeoPosition position, double radius, double minSimilarity) {
+        Set<String> trigrams = getTrigrams(VariousUtils.removeAccents(name));
+
+        List<SimilarStop> result = new ArrayList<>();
+
+        if (trigrams.isEmpty()) {
+            return result;
+        }
+
+        //the candidates are in the order of the OSM stops list, which is kept by the stable sort below
+        for (OSMStop osmStop : osmStopsSpatialIndex.getCandidateStops(position, radius, null)) {
+            Set<String> stopTrigrams = stopTrigramsMap.get(osmStop);
+
+            if (stopTrigrams == null || stopTrigrams.isEmpty() || !StopsDistanceUtils.isWithin(position, osmStop.getGeoPosition(), radius)) {
+                continue;
+            }
+
+            int sharedTrigrams = 0;
+
+            for (String trigram : trigrams) {
+                if (stopTrigrams.contains(trigram)) {
+                    sharedTrigrams++;
+                }
+            }
+
+            double similarity = (double) sharedTrigrams / (trigrams.size() + stopTrigrams.size() - sharedTrigrams);
+
+            if (sharedTrigrams > 0 && similarity >= minSimilarity) {
+                result.add(new SimilarStop(osmStop, similarity));
+            }
+        }
+
+        result.sort(Comparator.comparingDouble((SimilarStop similarStop) -> -similarStop.similarity));
+
+        return result;
+    }
+
+    //the name is lowercased and the punctuation is replaced by spaces, then every word is padded so that the first letters weigh more
+    private static Set<String> getTrigrams(String accentFreeName) {
+        Set<String> trigrams = new HashSet<>();
+
+        if (accentFreeName == null) {
+            return trigrams;
+        }
+
+        for (String word : accentFreeName.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+
+            String paddedWord = "  " + word + " ";
+
+            for (int i = 0; i + 3 <= paddedWord.length(); i++) {
+                trigrams.add(paddedWord.substring(i, i + 3));
+            }
+        }
+
+        return trigrams;
+    }
+
+    public static class SimilarStop {
+        private final OSMStop osmStop;
+        private final double similarity;
+
+        private SimilarStop(OSMStop osmStop, double similarity) {
+            this.osmStop = osmStop;
+            this.similarity = similarity;
+        }
+
+        public OSMStop getOsmStop() {
+            return osmStop;
+        }
+
+        public double getSimilarity() {
+            return similarity;
+        }
+    }
+}
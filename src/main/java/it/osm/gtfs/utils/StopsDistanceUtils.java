@@ -0,0 +1,140 @@
+/**
+ * Licensed under the GNU General Public License version 3
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.gnu.org/licenses/gpl-3.0.html
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package it.osm.gtfs.utils;
+
+import org.jxmapviewer.viewer.GeoPosition;
+
+/***
+ * This class computes the distances between stops only as precisely as needed by the rules of the stops matching:
+ * the pairs surely farther than the biggest threshold are rejected with a bounding box check, the others get a haversine distance,
+ * and only the distances near a threshold are computed again with the (much slower) Vincenty formula.
+ * These approximated distances are only meant to be compared with the thresholds: the distances used to rank the stops
+ * (like the closest matching candidate) are the exact ones of distance().
+ */
+public class StopsDistanceUtils {
+    //the distances used by the rules of MatchUtils.evaluate()
+    private static final double[] MATCH_THRESHOLDS = {30, 50, 100, 200, 2000};
+    private static final double MAX_MATCH_THRESHOLD = 2000;
+
+    private static final double EARTH_MEAN_RADIUS = 6371008.8;
+    //a bit less than the real length of a latitude degree, so that the bounding box check never rejects a near pair
+    private static final double MIN_METERS_PER_DEGREE = 110000;
+
+    //the spherical distance differs from the ellipsoidal one by less than 0.6%, so a bigger margin is used around the thresholds
+    private static final double RELATIVE_MARGIN = 0.01;
+    private static final double ABSOLUTE_MARGIN = 1;
+
+    /***
+     * @return the exact (Vincenty) distance in meters between the points
+     */
+    public static double distance(GeoPosition geoPosition1, GeoPosition geoPosition2) {
+        return OSMDistanceUtils.distVincenty(geoPosition1.getLatitude(), geoPosition1.getLongitude(), geoPosition2.getLatitude(), geoPosition2.getLongitude());
+    }
+
+    public static double thresholdDistance(GeoPosition geoPosition1, GeoPosition geoPosition2) {
+        return thresholdDistance(geoPosition1.getLatitude(), geoPosition1.getLongitude(), geoPosition2.getLatitude(), geoPosition2.getLongitude());
+    }
+
+    /***
+     * @return the distance in meters between the points, which is exact near the matching thresholds (30, 50, 100, 200 and 2000 m)
+     * and approximated elsewhere, so it gives the same result of the exact distance only when compared with a threshold.
+     * For the points farther than 2000 m it is only a lower bound of the distance
+     */
+    public static double thresholdDistance(double lat1, double lon1, double lat2, double lon2) {
+        double lowerBound = getBoundingBoxLowerBound(lat1, lon1, lat2, lon2);
+
+        if (lowerBound > getUpperMargin(MAX_MATCH_THRESHOLD)) {
+            return lowerBound;
+        }
+
+        double haversineDistance = distHaversine(lat1, lon1, lat2, lon2);
+
+        for (double threshold : MATCH_THRESHOLDS) {
+            if (Math.abs(haversineDistance - threshold) <= threshold * RELATIVE_MARGIN + ABSOLUTE_MARGIN) {
+                return OSMDistanceUtils.distVincenty(lat1, lon1, lat2, lon2);
+            }
+        }
+
+        return haversineDistance;
+    }
+
+    /***
+     * Computes the distances from one point to many others, with the same precision of thresholdDistance()
+     * @param latitudes the latitudes of the other points
+     * @param longitudes the longitudes of the other points, in the same order of the latitudes
+     */
+    public static double[] thresholdDistances(double latitude, double longitude, double[] latitudes, double[] longitudes) {
+        double[] result = new double[latitudes.length];
+
+        for (int i = 0; i < latitudes.length; i++) {
+            result[i] = thresholdDistance(latitude, longitude, latitudes[i], longitudes[i]);
+        }
+
+        return result;
+    }
+
+    /***
+     * @return whether the points are less than the radius far away, with the Vincenty distance used only if the pair is near the radius
+     */
+    public static boolean isWithin(GeoPosition geoPosition1, GeoPosition geoPosition2, double radius) {
+        double lat1 = geoPosition1.getLatitude(), lon1 = geoPosition1.getLongitude();
+        double lat2 = geoPosition2.getLatitude(), lon2 = geoPosition2.getLongitude();
+
+        if (getBoundingBoxLowerBound(lat1, lon1, lat2, lon2) > getUpperMargin(radius)) {
+            return false;
+        }
+
+        double haversineDistance = distHaversine(lat1, lon1, lat2, lon2);
+
+        if (Math.abs(haversineDistance - radius) <= radius * RELATIVE_MARGIN + ABSOLUTE_MARGIN) {
+            return OSMDistanceUtils.distVincenty(lat1, lon1, lat2, lon2) < radius;
+        }
+
+        return haversineDistance < radius;
+    }
+
+    /***
+     * @return the great circle distance in meters between the points, on a sphere with the mean radius of the earth
+     */
+    public static double distHaversine(double lat1, double lon1, double lat2, double lon2) {
+        double deltaLat = Math.toRadians(lat2 - lat1);
+        double deltaLon = Math.toRadians(lon2 - lon1);
+
+        double sinHalfDeltaLat = Math.sin(deltaLat / 2);
+        double sinHalfDeltaLon = Math.sin(deltaLon / 2);
+
+        double a = sinHalfDeltaLat * sinHalfDeltaLat
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * sinHalfDeltaLon * sinHalfDeltaLon;
+
+        return 2 * EARTH_MEAN_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    //the biggest of the north-south and east-west distances, which is never more than the real distance
+    private static double getBoundingBoxLowerBound(double lat1, double lon1, double lat2, double lon2) {
+        double deltaLon = Math.abs(lon2 - lon1);
+
+        //the points on the two sides of the antimeridian
+        if (deltaLon > 180) {
+            deltaLon = 360 - deltaLon;
+        }
+
+        double minCosLat = Math.cos(Math.toRadians(Math.max(Math.abs(lat1), Math.abs(lat2))));
+
+        return Math.max(Math.abs(lat2 - lat1), deltaLon * minCosLat) * MIN_METERS_PER_DEGREE;
+    }
+
+    private static double getUpperMargin(double threshold) {
+        return threshold * (1 + RELATIVE_MARGIN) + ABSOLUTE_MARGIN;
+    }
+}
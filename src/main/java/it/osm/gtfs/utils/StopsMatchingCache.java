@@ -0,0 +1,267 @@
+/**
+ * Licensed under the GNU General Public License version 3
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.gnu.org/licenses/gpl-3.0.html
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package it.osm.gtfs.utils;
+
+import it.osm.gtfs.models.GTFSStop;
+import it.osm.gtfs.models.OSMStop;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.jxmapviewer.viewer.GeoPosition;
+import org.w3c.dom.Node;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import static org.fusesource.jansi.Ansi.ansi;
+
+/***
+ * This class saves the evaluated matching candidates of every GTFS stop together with a content hash of all the GTFS and OSM stops,
+ * so that the next matching only evaluates again the GTFS stops that changed, or that are near an OSM stop that changed.
+ * The candidates are saved by phase ("key" and "near") as JSON arrays, their content is decided by MatchUtils.
+ */
+public class StopsMatchingCache {
+    private final File cacheFile;
+    private final String context;
+
+    private JSONObject cachedGtfsStops = new JSONObject();
+    private JSONObject cachedOsmStops = new JSONObject();
+
+    private final Map<String, JSONObject> newGtfsStops = new HashMap<>();
+
+    /***
+     * @param context what the matching depends on apart from the stops (like the plugin and the settings), the saved results
+     *                are discarded when it changes
+     */
+    public StopsMatchingCache(File cacheFile, String context) {
+        this.cacheFile = cacheFile;
+        this.context = context;
+    }
+
+    public static StopsMatchingCache fromSettings(String context) {
+        return new StopsMatchingCache(new File(GTFSImportSettings.getInstance().getStopsMatchingCacheFilePath()), context);
+    }
+
+    public void load() {
+        if (!cacheFile.exists()) {
+            return;
+        }
+
+        try {
+            JSONObject cache = new JSONObject(Files.readString(cacheFile.toPath(), StandardCharsets.UTF_8));
+
+            if (context.equals(cache.optString("context"))) {
+                cachedGtfsStops = cache.getJSONObject("gtfsStops");
+                cachedOsmStops = cache.getJSONObject("osmStops");
+            } else {
+                System.out.println(ansi().render("@|yellow The matching settings changed, all the stops will be matched again |@"));
+            }
+        } catch (Exception e) {
+            System.out.println(ansi().render("@|yellow Couldn't read the stops matching cache, all the stops will be matched again: " + e.getMessage() + " |@"));
+        }
+    }
+
+    /***
+     * Finds the GTFS stops whose saved candidates can't be reused: the new or changed stops, and the stops less than the radius far away
+     * from an OSM stop that was created, changed or deleted (with its old or new position) or that has (or had) the same ref or gtfs_id
+     */
+    public Set<GTFSStop> getChangedGtfsStops(List<GTFSStop> gtfsStopsList, List<OSMStop> osmStopsList, double radius) {
+        Set<GTFSStop> changedGtfsStops = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        //without saved candidates (first run or changed settings) every stop is changed, no need to compare the OSM stops
+        if (cachedGtfsStops.isEmpty()) {
+            changedGtfsStops.addAll(gtfsStopsList);
+            return changedGtfsStops;
+        }
+
+        //the positions, refs and gtfs_ids of the created, changed and deleted OSM stops
+        PositionsGrid changedPositions = new PositionsGrid();
+        Set<String> changedKeys = new HashSet<>();
+        Set<String> currentOsmIds = new HashSet<>();
+
+        for (OSMStop osmStop : osmStopsList) {
+            String osmId = osmStop.getOSMId();
+            JSONObject cachedOsmStop = (osmId == null) ? null : cachedOsmStops.optJSONObject(osmId);
+
+            currentOsmIds.add(osmId);
+
+            if (cachedOsmStop == null || !cachedOsmStop.getString("hash").equals(getHash(osmStop))) {
+                changedPositions.add(osmStop.getGeoPosition());
+                addKeys(changedKeys, osmStop.getCode(), osmStop.getGtfsId());
+
+                if (cachedOsmStop != null) {
+                    addCachedOsmStop(cachedOsmStop, changedPositions, changedKeys);
+                }
+            }
+        }
+
+        for (String osmId : cachedOsmStops.keySet()) {
+            if (!currentOsmIds.contains(osmId)) {
+                addCachedOsmStop(cachedOsmStops.getJSONObject(osmId), changedPositions, changedKeys);
+            }
+        }
+
+        for (GTFSStop gtfsStop : gtfsStopsList) {
+            JSONObject cachedGtfsStop = (gtfsStop.getGtfsId() == null) ? null : cachedGtfsStops.optJSONObject(gtfsStop.getGtfsId());
+
+            if (cachedGtfsStop == null || !cachedGtfsStop.getString("hash").equals(getHash(gtfsStop))
+                    || changedKeys.contains(gtfsStop.getCode()) || changedKeys.contains(gtfsStop.getGtfsId())
+                    || changedPositions.isNearAny(gtfsStop.getGeoPosition(), radius)) {
+                changedGtfsStops.add(gtfsStop);
+            }
+        }
+
+        return changedGtfsStops;
+    }
+
+    /***
+     * @return the saved candidates of the GTFS stop for the given phase, or null if they weren't saved
+     */
+    public JSONArray getCandidates(GTFSStop gtfsStop, String phase) {
+        JSONObject cachedGtfsStop = cachedGtfsStops.optJSONObject(gtfsStop.getGtfsId());
+
+        return (cachedGtfsStop == null) ? null : cachedGtfsStop.optJSONArray(phase);
+    }
+
+    /***
+     * Records the candidates of the GTFS stop for the given phase, to be saved by save()
+     */
+    public void putCandidates(GTFSStop gtfsStop, String phase, JSONArray candidates) {
+        if (gtfsStop.getGtfsId() != null) {
+            newGtfsStops.computeIfAbsent(gtfsStop.getGtfsId(), k -> new JSONObject().put("hash", getHash(gtfsStop))).put(phase, candidates);
+        }
+    }
+
+    /***
+     * Saves the candidates recorded with putCandidates(), replacing the previous ones, and the hashes of the OSM stops
+     */
+    public void save(List<OSMStop> osmStopsList) throws IOException {
+        JSONObject osmStops = new JSONObject();
+
+        for (OSMStop osmStop : osmStopsList) {
+            if (osmStop.getOSMId() != null) {
+                osmStops.put(osmStop.getOSMId(), new JSONObject()
+                        .put("hash", getHash(osmStop))
+                        .put("lat", osmStop.getGeoPosition().getLatitude())
+                        .put("lon", osmStop.getGeoPosition().getLongitude())
+                        .putOpt("code", osmStop.getCode())
+                        .putOpt("gtfsId", osmStop.getGtfsId()));
+            }
+        }
+
+        JSONObject cache = new JSONObject();
+        cache.put("context", context);
+        cache.put("gtfsStops", new JSONObject(newGtfsStops));
+        cache.put("osmStops", osmStops);
+
+        cacheFile.getParentFile().mkdirs();
+
+        //written to a temp file first, so that an interrupted run doesn't leave a broken cache
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        Files.writeString(tempFile.toPath(), cache.toString(), StandardCharsets.UTF_8);
+        Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void addCachedOsmStop(JSONObject cachedOsmStop, PositionsGrid changedPositions, Set<String> changedKeys) {
+        changedPositions.add(new GeoPosition(cachedOsmStop.getDouble("lat"), cachedOsmStop.getDouble("lon")));
+        addKeys(changedKeys, cachedOsmStop.optString("code", null), cachedOsmStop.optString("gtfsId", null));
+    }
+
+    private static void addKeys(Set<String> keys, String code, String gtfsId) {
+        if (code != null) {
+            keys.add(code);
+        }
+
+        if (gtfsId != null) {
+            keys.add(gtfsId);
+        }
+    }
+
+    private static String getHash(GTFSStop gtfsStop) {
+        return hash(gtfsStop.getGtfsId(), gtfsStop.getCode(), gtfsStop.getName(), gtfsStop.getGeoPosition().getLatitude(),
+                gtfsStop.getGeoPosition().getLongitude(), gtfsStop.getStopType());
+    }
+
+    private static String getHash(OSMStop osmStop) {
+        Node versionAttribute = (osmStop.originalXMLNode == null) ? null : osmStop.originalXMLNode.getAttributes().getNamedItem("version");
+
+        return hash(osmStop.getOSMId(), (versionAttribute == null) ? null : versionAttribute.getNodeValue(), osmStop.getGtfsId(), osmStop.getCode(),
+                osmStop.getName(), osmStop.getOperator(), osmStop.isRevised(), osmStop.getGeoPosition().getLatitude(), osmStop.getGeoPosition().getLongitude(),
+                osmStop.getStopType());
+    }
+
+    private static String hash(Object... values) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+            for (Object value : values) {
+                digest.update((value + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /***
+     * A grid of positions, to check only the positions of the near cells, like OSMStopsSpatialIndex does with the stops
+     */
+    private static class PositionsGrid {
+        private static final double CELL_SIZE_DEGREES = 0.01;
+        //a bit less than the real length of a latitude degree, so that the search square always contains the whole radius
+        private static final double METERS_PER_LATITUDE_DEGREE = 110000;
+
+        private final Map<Long, List<GeoPosition>> cellsPositionsMap = new HashMap<>();
+
+        public void add(GeoPosition position) {
+            cellsPositionsMap.computeIfAbsent(getCellKey(getCellCoordinate(position.getLatitude()), getCellCoordinate(position.getLongitude())),
+                    k -> new ArrayList<>()).add(position);
+        }
+
+        public boolean isNearAny(GeoPosition position, double radius) {
+            if (cellsPositionsMap.isEmpty()) {
+                return false;
+            }
+
+            double latDelta = radius / METERS_PER_LATITUDE_DEGREE;
+            double lonDelta = radius / (METERS_PER_LATITUDE_DEGREE * Math.max(Math.cos(Math.toRadians(position.getLatitude())), 0.01));
+
+            for (long row = getCellCoordinate(position.getLatitude() - latDelta); row <= getCellCoordinate(position.getLatitude() + latDelta); row++) {
+                for (long column = getCellCoordinate(position.getLongitude() - lonDelta); column <= getCellCoordinate(position.getLongitude() + lonDelta); column++) {
+                    for (GeoPosition otherPosition : cellsPositionsMap.getOrDefault(getCellKey(row, column), List.of())) {
+                        if (StopsDistanceUtils.isWithin(position, otherPosition, radius)) {
+                            return true;
+                        }
+                    }
+                }
+            }
+
+            return false;
+        }
+
+        private static long getCellCoordinate(double degrees) {
+            return (long) Math.floor(degrees / CELL_SIZE_DEGREES);
+        }
+
+        private static long getCellKey(long row, long column) {
+            return (row << 32) | (column & 0xffffffffL);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Licensed under the GNU General Public License version 3
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.gnu.org/licenses/gpl-3.0.html
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package it.osm.gtfs.utils;
+
+import it.osm.gtfs.models.Stop;
+
+import java.util.*;
+
+/***
+ * A locality-sensitive index of the sets of stops (by gtfs_id) of relations or trips, to find the items sharing most of the stops
+ * of a given list without comparing it with all of them.
+ * Every set gets a MinHash signature of BANDS * ROWS values, split in BANDS bands: two sets are candidates if all the values of at least one band
+ * are the same, which happens with a probability of 1 - (1 - J^ROWS)^BANDS where J is the Jaccard similarity of the sets
+ * (about 64% with J = 0.5, more than 99% from J = 0.75, always with the same stops).
+ */
+public class StopsMinHashIndex<T> {
+    private static final int BANDS = 16;
+    private static final int ROWS = 4;
+    private static final long[] SEEDS = new long[BANDS * ROWS];
+
+    static {
+        //fixed seeds, so that the candidates are the same at every run
+        Random random = new Random(0x5eed);
+        for (int i = 0; i < SEEDS.length; i++) {
+            SEEDS[i] = random.nextLong();
+        }
+    }
+
+    private final List<T> items = new ArrayList<>();
+    private final List<Map<Long, List<Integer>>> bandsItemsIndexesMaps = new ArrayList<>();
+
+    public StopsMinHashIndex() {
+        for (int i = 0; i < BANDS; i++) {
+            bandsItemsIndexesMaps.add(new HashMap<>());
+        }
+    }
+
+    /***
+     * Adds an item, the items with no stops with a gtfs_id are never candidates
+     */
+    public void add(T item, Collection<? extends Stop> stops) {
+        long[] signature = getSignature(stops);
+        int itemIndex = items.size();
+        items.add(item);
+
+        if (signature == null) {
+            return;
+        }
+
+        for (int band = 0; band < BANDS; band++) {
+            bandsItemsIndexesMaps.get(band).computeIfAbsent(getBandKey(signature, band), k -> new ArrayList<>()).add(itemIndex);
+        }
+    }
+
+    /***
+     * @return the items that share at least a band of the signature with the stops, in the order they were added
+     */
+    public List<T> getCandidates(Collection<? extends Stop> stops) {
+        long[] signature = getSignature(stops);
+
+        if (signature == null) {
+            return List.of();
+        }
+
+        BitSet candidatesIndexes = new BitSet(items.size());
+
+        for (int band = 0; band < BANDS; band++) {
+            for (int itemIndex : bandsItemsIndexesMaps.get(band).getOrDefault(getBandKey(signature, band), List.of())) {
+                candidatesIndexes.set(itemIndex);
+            }
+        }
+
+        List<T> result = new ArrayList<>();
+        for (int i = candidatesIndexes.nextSetBit(0); i >= 0; i = candidatesIndexes.nextSetBit(i + 1)) {
+            result.add(items.get(i));
+        }
+
+        return result;
+    }
+
+    private static long[] getSignature(Collection<? extends Stop> stops) {
+        long[] signature = new long[SEEDS.length];
+        Arrays.fill(signature, Long.MAX_VALUE);
+        boolean empty = true;
+
+        for (Stop stop : stops) {
+            if (stop == null || stop.getGtfsId() == null) {
+                continue;
+            }
+
+            empty = false;
+            long stopHash = stop.getGtfsId().hashCode();
+
+            for (int i = 0; i < SEEDS.length; i++) {
+                signature[i] = Math.min(signature[i], mix(stopHash ^ SEEDS[i]));
+            }
+        }
+
+        return empty ? null : signature;
+    }
+
+    private static long getBandKey(long[] signature, int band) {
+        long key = band;
+
+        for (int row = 0; row < ROWS; row++) {
+            key = mix(key * 31 + signature[band * ROWS + row]);
+        }
+
+        return key;
+    }
+
+    //the finalizer of SplitMix64, so that every seed gives an independent permutation of the stops
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+}
@@ -0,0 +1,231 @@
+/**
+ * Licensed under the GNU General Public License version 3
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.gnu.org/licenses/gpl-3.0.html
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package it.osm.gtfs.utils;
+
+import it.osm.gtfs.models.Stop;
+
+import java.util.*;
+
+/***
+ * This class compares the stops of an OSM relation with the stops of a GTFS trip.
+ * The stops are compared by gtfs_id like in Stop.equals, after converting them to arrays of integer symbols,
+ * and the alignment is the longest common subsequence computed with the bit-parallel algorithm of Hyyrö,
+ * with 64 stops of the relation for every step instead of one.
+ */
+public class StopsSequenceAlignment {
+
+    public enum Operation {
+        //the stop is in the same position in both the relation and the trip
+        SAME,
+        //the stop of the trip is missing in the relation
+        INSERTED,
+        //the stop of the relation is not in the trip
+        REMOVED,
+        //the stop is in both the relation and the trip, but in a different position
+        REORDERED
+    }
+
+    /***
+     * Same result of comparing every stop with all the stops of the other list (see Relation.getStopsAffinity), but with a map from the
+     * gtfs_id to the first sequence number of every stop
+     * @return the affinity, or Integer.MAX_VALUE if all the stops of the relation are in the trip and the number of stops is the same
+     */
+    public static int getAffinity(Map<Long, ? extends Stop> relationStops, Map<Long, ? extends Stop> tripStops) {
+        Map<String, Long> relationFirstSequences = getFirstSequences(relationStops);
+        Map<String, Long> tripFirstSequences = getFirstSequences(tripStops);
+
+        boolean exactMatch = true;
+        int affinity = 0;
+
+        for (Stop stop : relationStops.values()) {
+            Long tripSequence = (stop == null || stop.getGtfsId() == null) ? null : tripFirstSequences.get(stop.getGtfsId());
+
+            if (tripSequence != null) {
+                affinity += relationStops.size() - Math.abs(relationFirstSequences.get(stop.getGtfsId()) - tripSequence);
+            } else {
+                affinity -= relationStops.size();
+                exactMatch = false;
+            }
+        }
+
+        int diff = Math.abs(tripStops.size() - relationStops.size());
+
+        if (exactMatch && diff == 0)
+            return Integer.MAX_VALUE;
+
+        affinity -= diff;
+        return affinity;
+    }
+
+    /***
+     * @return the stops of both the lists in the order of the alignment, with the operation that turns the relation stops into the trip stops.
+     * The stops removed from one position and inserted in another one are both REORDERED
+     */
+    public static List<AlignedStop> align(List<? extends Stop> relationStops, List<? extends Stop> tripStops) {
+        int m = relationStops.size(), n = tripStops.size();
+        int words = (m + 63) / 64;
+
+        //the symbol of every gtfs_id of the relation, the stops without gtfs_id are -1 and never match
+        Map<String, Integer> gtfsIdSymbolsMap = new HashMap<>();
+        int[] relationSymbols = new int[m];
+        int[] tripSymbols = new int[n];
+
+        for (int i = 0; i < m; i++) {
+            Stop stop = relationStops.get(i);
+            relationSymbols[i] = (stop == null || stop.getGtfsId() == null) ? -1 : gtfsIdSymbolsMap.computeIfAbsent(stop.getGtfsId(), k -> gtfsIdSymbolsMap.size());
+        }
+
+        for (int j = 0; j < n; j++) {
+            Stop stop = tripStops.get(j);
+            tripSymbols[j] = (stop == null || stop.getGtfsId() == null) ? -1 : gtfsIdSymbolsMap.getOrDefault(stop.getGtfsId(), -1);
+        }
+
+        //the positions of every symbol in the relation, as bit masks
+        long[][] symbolMasks = new long[gtfsIdSymbolsMap.size()][words];
+        for (int i = 0; i < m; i++) {
+            if (relationSymbols[i] >= 0) {
+                symbolMasks[relationSymbols[i]][i >>> 6] |= 1L << (i & 63);
+            }
+        }
+
+        //rows[j] bit i is 0 if the LCS of the first j trip stops and the first i + 1 relation stops is longer than with the first i stops
+        long[][] rows = new long[n + 1][words];
+        Arrays.fill(rows[0], -1L);
+
+        for (int j = 0; j < n; j++) {
+            long[] previousRow = rows[j];
+
+            if (tripSymbols[j] < 0) {
+                rows[j + 1] = previousRow;
+                continue;
+            }
+
+            long[] mask = symbolMasks[tripSymbols[j]];
+            long[] row = rows[j + 1];
+            long carry = 0;
+
+            //V' = (V + (V & M)) | (V & ~M), with the carry propagated between the words
+            for (int w = 0; w < words; w++) {
+                long v = previousRow[w];
+                long u = v & mask[w];
+                long sum = v + u + carry;
+                carry = (Long.compareUnsigned(sum, v) < 0 || (carry == 1 && sum == v)) ? 1 : 0;
+                row[w] = sum | (v & ~mask[w]);
+            }
+        }
+
+        LinkedList<AlignedStop> result = new LinkedList<>();
+        int i = m, j = n;
+
+        while (i > 0 || j > 0) {
+            if (i > 0 && j > 0 && relationSymbols[i - 1] >= 0 && relationSymbols[i - 1] == tripSymbols[j - 1]
+                    && getLcsLength(rows[j], i) == getLcsLength(rows[j - 1], i - 1) + 1) {
+                result.addFirst(new AlignedStop(relationStops.get(i - 1), tripStops.get(j - 1), Operation.SAME));
+                i--;
+                j--;
+            } else if (j > 0 && getLcsLength(rows[j - 1], i) == getLcsLength(rows[j], i)) {
+                result.addFirst(new AlignedStop(null, tripStops.get(j - 1), Operation.INSERTED));
+                j--;
+            } else {
+                result.addFirst(new AlignedStop(relationStops.get(i - 1), null, Operation.REMOVED));
+                i--;
+            }
+        }
+
+        markReorderedStops(result);
+
+        return new ArrayList<>(result);
+    }
+
+    private static void markReorderedStops(List<AlignedStop> alignedStops) {
+        Set<String> insertedGtfsIds = new HashSet<>();
+        Set<String> removedGtfsIds = new HashSet<>();
+
+        for (AlignedStop alignedStop : alignedStops) {
+            if (alignedStop.operation == Operation.INSERTED && alignedStop.tripStop.getGtfsId() != null) {
+                insertedGtfsIds.add(alignedStop.tripStop.getGtfsId());
+            } else if (alignedStop.operation == Operation.REMOVED && alignedStop.relationStop.getGtfsId() != null) {
+                removedGtfsIds.add(alignedStop.relationStop.getGtfsId());
+            }
+        }
+
+        insertedGtfsIds.retainAll(removedGtfsIds);
+
+        for (AlignedStop alignedStop : alignedStops) {
+            Stop stop = (alignedStop.operation == Operation.INSERTED) ? alignedStop.tripStop : alignedStop.relationStop;
+
+            if (alignedStop.operation != Operation.SAME && stop.getGtfsId() != null && insertedGtfsIds.contains(stop.getGtfsId())) {
+                alignedStop.operation = Operation.REORDERED;
+            }
+        }
+    }
+
+    //the LCS length is the number of 0 bits among the first relationLength bits of the row
+    private static int getLcsLength(long[] row, int relationLength) {
+        int ones = 0;
+        int fullWords = relationLength >>> 6;
+
+        for (int w = 0; w < fullWords; w++) {
+            ones += Long.bitCount(row[w]);
+        }
+
+        if ((relationLength & 63) != 0) {
+            ones += Long.bitCount(row[fullWords] & ((1L << (relationLength & 63)) - 1));
+        }
+
+        return relationLength - ones;
+    }
+
+    private static Map<String, Long> getFirstSequences(Map<Long, ? extends Stop> stops) {
+        Map<String, Long> result = new HashMap<>();
+
+        for (Map.Entry<Long, ? extends Stop> entry : stops.entrySet()) {
+            if (entry.getValue() != null && entry.getValue().getGtfsId() != null) {
+                result.putIfAbsent(entry.getValue().getGtfsId(), entry.getKey());
+            }
+        }
+
+        return result;
+    }
+
+    public static class AlignedStop {
+        private final Stop relationStop;
+        private final Stop tripStop;
+        private Operation operation;
+
+        private AlignedStop(Stop relationStop, Stop tripStop, Operation operation) {
+            this.relationStop = relationStop;
+            this.tripStop = tripStop;
+            this.operation = operation;
+        }
+
+        /***
+         * @return the stop of the relation, null if the stop is only in the trip
+         */
+        public Stop getRelationStop() {
+            return relationStop;
+        }
+
+        /***
+         * @return the stop of the trip, null if the stop is only in the relation
+         */
+        public Stop getTripStop() {
+            return tripStop;
+        }
+
+        public Operation getOperation() {
+            return operation;
+        }
+    }
+}
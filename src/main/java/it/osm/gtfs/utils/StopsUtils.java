@@ -2,15 +2,15 @@ package it.osm.gtfs.utils;
 
 import it.osm.gtfs.enums.OSMStopType;
 import it.osm.gtfs.enums.WheelchairAccess;
+import it.osm.gtfs.input.StoredOSMStopsList;
 import it.osm.gtfs.models.GTFSStop;
 import it.osm.gtfs.models.OSMStop;
 import org.apache.commons.lang3.StringUtils;
 import org.w3c.dom.Element;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static org.fusesource.jansi.Ansi.ansi;
 
@@ -23,7 +23,7 @@ public class StopsUtils {
         List<OSMStop> result = new ArrayList<>();
 
         for (OSMStop currentLoopStop : osmStopsList) {
-            if (currentLoopStop.getStopType().equals(mainOsmStop.getStopType()) && OSMDistanceUtils.distVincenty(mainOsmStop.getGeoPosition(), currentLoopStop.getGeoPosition()) < radius) {
+            if (currentLoopStop.getStopType().equals(mainOsmStop.getStopType()) && StopsDistanceUtils.isWithin(mainOsmStop.getGeoPosition(), currentLoopStop.getGeoPosition(), radius)) {
                 result.add(currentLoopStop);
             }
         }
@@ -34,7 +34,29 @@ public class StopsUtils {
         return result;
     }
 
+    /***
+     * @return the stops by gtfs_id, the lookups of the stops read by OSMParser use the indexes of the stops store
+     */
     public static Map<String, OSMStop> getGTFSIdOSMStopMap(List<OSMStop> stops) {
+        if (stops instanceof StoredOSMStopsList storedStops) {
+            return new IndexedOSMStopMap(storedStops::getByGtfsId, () -> buildGTFSIdOSMStopMap(stops));
+        }
+
+        return buildGTFSIdOSMStopMap(stops);
+    }
+
+    /***
+     * @return the stops by OSM id, the lookups of the stops read by OSMParser use the indexes of the stops store
+     */
+    public static Map<String, OSMStop> getOSMIdOSMStopMap(List<OSMStop> stops) {
+        if (stops instanceof StoredOSMStopsList storedStops) {
+            return new IndexedOSMStopMap(storedStops::getByOSMId, () -> buildOSMIdOSMStopMap(stops));
+        }
+
+        return buildOSMIdOSMStopMap(stops);
+    }
+
+    private static Map<String, OSMStop> buildGTFSIdOSMStopMap(List<OSMStop> stops) {
         final Map<String, OSMStop> result = new TreeMap<>();
 
         for (OSMStop stop : stops) {
@@ -46,7 +68,7 @@ public class StopsUtils {
         return result;
     }
 
-    public static Map<String, OSMStop> getOSMIdOSMStopMap(List<OSMStop> stops) {
+    private static Map<String, OSMStop> buildOSMIdOSMStopMap(List<OSMStop> stops) {
         final Map<String, OSMStop> result = new TreeMap<>();
 
         for (OSMStop stop : stops) {
@@ -64,7 +86,7 @@ public class StopsUtils {
 
         OSMXMLUtils.addOrReplaceTagValue(originalNode, "gtfs_id", osmStop.gtfsStopMatchedWith.getGtfsId());
         OSMXMLUtils.addOrReplaceTagValue(originalNode, "ref", osmStop.gtfsStopMatchedWith.getCode());
-        OSMXMLUtils.addOrReplaceTagValue(originalNode, "name", GTFSImportSettings.getInstance().getPlugin().fixBusStopName(osmStop.gtfsStopMatchedWith));
+        OSMXMLUtils.addOrReplaceTagValue(originalNode, "name", osmStop.gtfsStopMatchedWith.getFixedName());
         OSMXMLUtils.addOrReplaceTagValue(originalNode, "operator", GTFSImportSettings.getInstance().getOperator());
 
 
@@ -91,4 +113,37 @@ public class StopsUtils {
         }
 
     }
+
+    /***
+     * A read-only map whose lookups use an index, the whole map (sorted by key) is built only if it is iterated
+     */
+    private static class IndexedOSMStopMap extends AbstractMap<String, OSMStop> {
+        private final Function<String, OSMStop> lookup;
+        private final Supplier<Map<String, OSMStop>> fullMapSupplier;
+        private Map<String, OSMStop> fullMap;
+
+        private IndexedOSMStopMap(Function<String, OSMStop> lookup, Supplier<Map<String, OSMStop>> fullMapSupplier) {
+            this.lookup = lookup;
+            this.fullMapSupplier = fullMapSupplier;
+        }
+
+        @Override
+        public OSMStop get(Object key) {
+            return (key instanceof String) ? lookup.apply((String) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public synchronized Set<Entry<String, OSMStop>> entrySet() {
+            if (fullMap == null) {
+                fullMap = Collections.unmodifiableMap(fullMapSupplier.get());
+            }
+
+            return fullMap.entrySet();
+        }
+    }
 }
@@ -4,13 +4,14 @@ import java.text.Normalizer;
 import java.util.regex.Pattern;
 
 public class VariousUtils {
+    private static final Pattern DIACRITICAL_MARKS_PATTERN = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+
     public static String removeAccents(String input) {
         if (input == null) {
             return null;
         }
 
         String normalizedString = Normalizer.normalize(input, Normalizer.Form.NFD);
-        Pattern pattern = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
-        return pattern.matcher(normalizedString).replaceAll("");
+        return DIACRITICAL_MARKS_PATTERN.matcher(normalizedString).replaceAll("");
     }
 }